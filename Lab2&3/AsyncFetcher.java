@@ -0,0 +1,211 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Asynchronous front end of {@link Xurl#fetch}. Each query gives a
+ * CompletableFuture of its {@link FetchResult}, which callers may compose
+ * instead of waiting for it. Queries run on the given executor, at most
+ * maxInFlight of them at a time; the others wait in a queue without holding
+ * any thread.
+ */
+public class AsyncFetcher {
+
+  public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+  private static class Task {
+    final String url;
+    final String fileName;
+    final CompletableFuture<FetchResult> future = new CompletableFuture<FetchResult>();
+
+    Task(String url, String fileName) {
+      this.url = url;
+      this.fileName = fileName;
+    }
+  }
+
+  private final Executor executor;
+  private final int maxInFlight;
+  private final String proxyHost;
+  private final int proxyPort;
+  private final ConcurrentLinkedQueue<Task> waiting = new ConcurrentLinkedQueue<Task>();
+  private final AtomicInteger inFlight = new AtomicInteger(0);
+
+  // queries submitted and not completed yet, including their dependent stages
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition idle = lock.newCondition();
+  private int outstanding = 0; // guarded by lock
+
+  private final AtomicLong succeeded = new AtomicLong(0);
+  private final AtomicLong failed = new AtomicLong(0);
+
+  /**
+   * @param executor
+   *          where the queries run
+   * @param maxInFlight
+   *          the maximum number of queries running at the same time
+   * @param proxyHost
+   *          the target host for the TCP connections when not null
+   * @param proxyPort
+   *          the target port for the TCP connections when a proxyHost is
+   *          specified; a negative port number specifies the default HTTP port
+   */
+  public AsyncFetcher(Executor executor, int maxInFlight, String proxyHost,
+      int proxyPort) {
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    this.proxyHost = proxyHost;
+    this.proxyPort = proxyPort;
+  }
+
+  /**
+   * Query an URL, the local file being named by the automatic naming rules.
+   *
+   * @param url
+   *          the requested (absolute) URL in raw form
+   * @return the outcome, completed exceptionally when the URL is not a valid
+   *         http URL
+   */
+  public CompletableFuture<FetchResult> fetch(String url) {
+    return fetch(url, null);
+  }
+
+  /**
+   * Query an URL.
+   *
+   * @param url
+   *          the requested (absolute) URL in raw form
+   * @param fileName
+   *          the name of a local file where the result will be stored, or
+   *          null for the automatic naming rules
+   * @return the outcome, completed exceptionally when the URL is not a valid
+   *         http URL
+   */
+  public CompletableFuture<FetchResult> fetch(String url, String fileName) {
+    Task task = submitted(url, fileName);
+    waiting.add(task);
+    dispatch();
+    return task.future;
+  }
+
+  /**
+   * Query an URL after a delay, e.g. to try it again, the local file being
+   * named by the automatic naming rules. No thread is held meanwhile, and the
+   * query counts as outstanding from now on.
+   *
+   * @param url
+   *          the requested (absolute) URL in raw form
+   * @param delay
+   *          in milliseconds
+   * @return the outcome, completed exceptionally when the URL is not a valid
+   *         http URL
+   */
+  public CompletableFuture<FetchResult> fetchAfter(String url, long delay) {
+    Task task = submitted(url, null);
+    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+        .execute(() -> {
+          waiting.add(task);
+          dispatch();
+        });
+    return task.future;
+  }
+
+  private Task submitted(String url, String fileName) {
+    lock.lock();
+    try {
+      outstanding++;
+    } finally {
+      lock.unlock();
+    }
+    return new Task(url, fileName);
+  }
+
+  /**
+   * Start waiting queries while there is room for them.
+   */
+  private void dispatch() {
+    while (true) {
+      int running = inFlight.get();
+      if (running >= maxInFlight)
+        return; // started again when a query completes
+      if (!inFlight.compareAndSet(running, running + 1))
+        continue;
+      Task task = waiting.poll();
+      if (task == null) {
+        inFlight.decrementAndGet();
+        if (waiting.isEmpty())
+          return;
+        continue; // added meanwhile
+      }
+      try {
+        executor.execute(() -> run(task));
+      } catch (RejectedExecutionException e) {
+        inFlight.decrementAndGet();
+        complete(task, null, e);
+      }
+    }
+  }
+
+  private void run(Task task) {
+    FetchResult result = null;
+    RuntimeException error = null;
+    try {
+      result = Xurl.fetch(task.url, task.fileName, proxyHost, proxyPort);
+    } catch (RuntimeException e) {
+      error = e;
+    }
+    inFlight.decrementAndGet();
+    dispatch();
+    complete(task, result, error);
+  }
+
+  private void complete(Task task, FetchResult result, Throwable error) {
+    if (result != null && result.error == null)
+      succeeded.incrementAndGet();
+    else
+      failed.incrementAndGet();
+    try {
+      // dependent stages run here, and may submit other queries
+      if (error == null)
+        task.future.complete(result);
+      else
+        task.future.completeExceptionally(error);
+    } finally {
+      lock.lock();
+      try {
+        if (--outstanding == 0)
+          idle.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Wait until all the queries are completed, including the queries submitted
+   * by the stages depending on them.
+   *
+   * @throws InterruptedException
+   *           when interrupted while waiting
+   */
+  public void awaitIdle() throws InterruptedException {
+    lock.lock();
+    try {
+      while (outstanding > 0)
+        idle.await();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "fetches: succeeded=" + succeeded.get() + " failed=" + failed.get();
+  }
+}
@@ -0,0 +1,161 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared pool of fixed-size byte buffers, so that downloads and connections
+ * reuse the same few buffers instead of allocating their own. The memory held
+ * by the pool has a ceiling: when every buffer is taken, a query waits for
+ * one to be given back. Since a query may hold two buffers (the input of its
+ * connection and the one its body is copied through), waiting is bounded, and
+ * past MAX_WAIT a temporary buffer is allocated beyond the ceiling, to be
+ * dropped when given back.
+ *
+ * Taking and giving back buffers is lock-free; the lock is only used to wait
+ * at the ceiling.
+ */
+public class BufferPool {
+
+  public static final long DEFAULT_MAX_MEMORY = 32L << 20; // bytes
+  public static final long MAX_WAIT = 1000; // milliseconds
+
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+  // buffers in existence, either free or taken, including temporary ones
+  private final AtomicInteger allocated = new AtomicInteger(0);
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  private final AtomicInteger waiting = new AtomicInteger(0);
+
+  private final AtomicLong acquired = new AtomicLong(0);
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong allocations = new AtomicLong(0);
+  private final AtomicLong waits = new AtomicLong(0);
+  private final AtomicLong overflows = new AtomicLong(0);
+
+  /**
+   * @param bufferSize
+   *          the size of each buffer in bytes
+   * @param maxMemory
+   *          the memory in bytes the buffers may take as a whole
+   */
+  public BufferPool(int bufferSize, long maxMemory) {
+    this.bufferSize = bufferSize;
+    this.maxBuffers = (int) Math.max(1, maxMemory / bufferSize);
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Take a buffer, reusing a free one when possible, and waiting for one to be
+   * given back when the ceiling is reached.
+   *
+   * @return a buffer of bufferSize bytes, with undefined content, to be given
+   *         back by {@link #release}
+   */
+  public byte[] acquire() {
+    acquired.incrementAndGet();
+    byte[] buffer = free.poll();
+    if (buffer != null) {
+      hits.incrementAndGet();
+      return buffer;
+    }
+    for (int count = allocated.get(); count < maxBuffers; count = allocated
+        .get()) {
+      if (allocated.compareAndSet(count, count + 1)) {
+        allocations.incrementAndGet();
+        return new byte[bufferSize];
+      }
+    }
+    buffer = await();
+    if (buffer != null) {
+      hits.incrementAndGet();
+      return buffer;
+    }
+    // the holders may be waiting as well, go beyond the ceiling
+    overflows.incrementAndGet();
+    allocated.incrementAndGet();
+    return new byte[bufferSize];
+  }
+
+  /**
+   * Wait at most MAX_WAIT for a buffer to be given back.
+   *
+   * @return the buffer, or null
+   */
+  private byte[] await() {
+    waits.incrementAndGet();
+    waiting.incrementAndGet();
+    lock.lock();
+    try {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(MAX_WAIT);
+      byte[] buffer;
+      while ((buffer = free.poll()) == null && remaining > 0)
+        remaining = released.awaitNanos(remaining);
+      return buffer;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return free.poll();
+    } finally {
+      lock.unlock();
+      waiting.decrementAndGet();
+    }
+  }
+
+  /**
+   * Give back a buffer obtained from {@link #acquire}. It must not be used
+   * afterwards.
+   *
+   * @param buffer
+   *          the buffer
+   */
+  public void release(byte[] buffer) {
+    if (buffer.length != bufferSize)
+      return;
+    int count;
+    while ((count = allocated.get()) > maxBuffers) {
+      if (allocated.compareAndSet(count, count - 1))
+        return; // a temporary buffer, dropped
+    }
+    free.offer(buffer);
+    if (waiting.get() > 0) {
+      lock.lock();
+      try {
+        released.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  public long getAcquired() {
+    return acquired.get();
+  }
+
+  public long getAllocations() {
+    return allocations.get() + overflows.get();
+  }
+
+  /**
+   * Give the share of the buffers taken which were reused.
+   */
+  public double hitRate() {
+    long total = acquired.get();
+    return total == 0 ? 0 : (double) hits.get() / total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "buffers: acquired=%d hits=%d (%.1f%%) allocated=%d waited=%d overflowed=%d",
+        acquired.get(), hits.get(), 100 * hitRate(), allocations.get(),
+        waits.get(), overflows.get());
+  }
+}
@@ -0,0 +1,234 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-host pool of persistent HTTP/1.1 connections. A connection is handed
+ * back with {@link #release(Connection)} once its response has been entirely
+ * consumed, and may then be picked again by the next query to the same host.
+ * Idle connections are closed after a while, and only a limited number of
+ * them is kept for each host.
+ */
+public class ConnectionPool {
+
+  public static final int DEFAULT_MAX_IDLE_PER_HOST = 4;
+  public static final long DEFAULT_IDLE_TIMEOUT = 15000; // milliseconds
+
+  /**
+   * An open TCP connection with the streams used to talk through it.
+   */
+  public static class Connection {
+    final String key;
+    final String host;
+    final int port;
+    final Socket socket;
+    final PrintStream queryStream;
+    /** the input of the socket, enforcing the limits of the current query */
+    final FetchLimits.Watchdog watchdog;
+    final HttpInput answerStream;
+    /** true when taken from the pool rather than freshly opened */
+    boolean reused;
+    /** cleared as soon as the connection can't carry another request */
+    boolean keepAlive = true;
+    long lastUsed;
+
+    Connection(String host, int port, Socket socket, BufferPool buffers)
+        throws IOException {
+      this.key = host + ':' + port;
+      this.host = host;
+      this.port = port;
+      this.socket = socket;
+      // a request is sent as a whole on flush
+      this.queryStream = new PrintStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      this.watchdog = new FetchLimits.Watchdog(socket);
+      this.answerStream = buffers == null ? new HttpInput(watchdog)
+          : new HttpInput(watchdog, buffers);
+    }
+
+    void close() {
+      answerStream.release();
+      try {
+        socket.shutdownOutput(); // close the other direction
+        socket.close(); // close everything and release memory
+      } catch (IOException e) {
+        // nothing more to do with this connection
+      }
+    }
+  }
+
+  /**
+   * The idle connections kept for one host.
+   */
+  private static class HostPool {
+    final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<Connection>();
+    final AtomicInteger size = new AtomicInteger(0);
+  }
+
+  private final ConcurrentHashMap<String, HostPool> hosts = new ConcurrentHashMap<String, HostPool>();
+  private final HostResolver resolver;
+  private final BufferPool buffers;
+  private final int maxIdlePerHost;
+  private final long idleTimeout;
+  private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+  private final AtomicLong opened = new AtomicLong(0);
+  private final AtomicLong reused = new AtomicLong(0);
+  private final AtomicLong evicted = new AtomicLong(0);
+
+  public ConnectionPool(HostResolver resolver) {
+    this(resolver, null);
+  }
+
+  public ConnectionPool(HostResolver resolver, BufferPool buffers) {
+    this(resolver, buffers, DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   * @param resolver
+   *          the name resolution used to open new connections
+   * @param buffers
+   *          where the input buffers of the connections are taken from while
+   *          they receive, or null for a buffer owned by each connection
+   * @param maxIdlePerHost
+   *          the maximum number of idle connections kept for each host
+   * @param idleTimeout
+   *          the delay in milliseconds after which an idle connection is
+   *          closed
+   */
+  public ConnectionPool(HostResolver resolver, BufferPool buffers,
+      int maxIdlePerHost, long idleTimeout) {
+    this.resolver = resolver;
+    this.buffers = buffers;
+    this.maxIdlePerHost = maxIdlePerHost;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Get a connection to the specified target, reusing an idle one when
+   * possible.
+   *
+   * @param host
+   *          the target of the TCP connection
+   * @param port
+   *          the target of the TCP connection
+   * @param timeout
+   *          timeout in milliseconds on connection establishing
+   * @return an open connection
+   * @throws IOException
+   *           when the host can't be resolved, or when a new connection can't
+   *           be established with any of its addresses
+   */
+  public Connection acquire(String host, int port, int timeout)
+      throws IOException {
+    String key = host + ':' + port;
+    HostPool pool = hosts.get(key);
+    if (pool != null) {
+      long now = System.currentTimeMillis();
+      Connection connection;
+      // most recently used first, it is the least likely to be closed
+      while ((connection = pool.idle.pollLast()) != null) {
+        pool.size.decrementAndGet();
+        if (now - connection.lastUsed < idleTimeout
+            && !connection.socket.isClosed()) {
+          connection.reused = true;
+          reused.incrementAndGet();
+          return connection;
+        }
+        connection.close();
+        evicted.incrementAndGet();
+      }
+    }
+    IOException failure = null;
+    for (InetAddress address : resolver.resolve(host)) {
+      // we create an unconnected socket
+      // no explicit binding, so the local address (local port number) is
+      // picked by system
+      Socket socket = new Socket();
+      try {
+        socket.connect(new InetSocketAddress(address, port), timeout);
+        opened.incrementAndGet();
+        return new Connection(host, port, socket, buffers);
+      } catch (IOException e) {
+        socket.close();
+        failure = e; // try the next address of this host
+      }
+    }
+    throw failure != null ? failure : new UnknownHostException(host);
+  }
+
+  /**
+   * Give back a connection once its response has been consumed. It is closed
+   * when it can't be kept alive, e.g. when bytes were received beyond the
+   * response, or when enough connections are already idle for its host. An
+   * idle connection gives its input buffer back.
+   *
+   * @param connection
+   *          the connection obtained from {@link #acquire}
+   */
+  public void release(Connection connection) {
+    if (!connection.keepAlive || connection.answerStream.hasBuffered()) {
+      connection.close();
+      return;
+    }
+    connection.answerStream.release();
+    connection.lastUsed = System.currentTimeMillis();
+    HostPool pool = hosts.computeIfAbsent(connection.key, k -> new HostPool());
+    if (pool.size.incrementAndGet() > maxIdlePerHost) {
+      pool.size.decrementAndGet();
+      connection.close();
+    } else {
+      pool.idle.offerLast(connection);
+    }
+    evictIdle(connection.lastUsed);
+  }
+
+  /**
+   * Close the connections which stayed idle for too long, at most once every
+   * half idle timeout.
+   */
+  private void evictIdle(long now) {
+    long last = lastSweep.get();
+    if (now - last < idleTimeout / 2 || !lastSweep.compareAndSet(last, now))
+      return;
+    for (HostPool pool : hosts.values()) {
+      Iterator<Connection> it = pool.idle.iterator();
+      while (it.hasNext()) {
+        Connection connection = it.next();
+        if (now - connection.lastUsed >= idleTimeout
+            && pool.idle.remove(connection)) {
+          pool.size.decrementAndGet();
+          connection.close();
+          evicted.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  public long getOpened() {
+    return opened.get();
+  }
+
+  public long getReused() {
+    return reused.get();
+  }
+
+  public long getEvicted() {
+    return evicted.get();
+  }
+
+  @Override
+  public String toString() {
+    return "connections: opened=" + opened.get() + " reused=" + reused.get()
+        + " evicted=" + evicted.get();
+  }
+}
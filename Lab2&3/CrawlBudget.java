@@ -0,0 +1,92 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounds of a crawl, applied when an URL is discovered so that the URLs
+ * out of them are never kept nor fetched: URLs deeper than maxDepth, past the
+ * maxPages budget of the whole crawl, or past the maxPerHost budget of their
+ * host are rejected. The depth of an URL is the number of links followed from
+ * the seed.
+ *
+ * The depth only depends on the URL being found, and is checked before the
+ * URL is marked as seen, since it may be found later through a shorter path.
+ * The budgets are only charged once per URL, after it has been marked as
+ * seen; once exceeded, they stay so.
+ */
+public class CrawlBudget {
+
+  public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+  private final int maxDepth;
+  private final long maxPages;
+  private final int maxPerHost;
+
+  private final AtomicLong pages = new AtomicLong(0);
+  private final ConcurrentHashMap<String, AtomicInteger> hostPages = new ConcurrentHashMap<String, AtomicInteger>();
+  private final AtomicLong tooDeep = new AtomicLong(0);
+  private final AtomicLong overBudget = new AtomicLong(0);
+  private final AtomicLong overHostBudget = new AtomicLong(0);
+
+  /**
+   * @param maxDepth
+   *          the depth of the deepest URLs accepted, the seed being at 0
+   * @param maxPages
+   *          the number of URLs accepted in the whole crawl
+   * @param maxPerHost
+   *          the number of URLs accepted from each host
+   */
+  public CrawlBudget(int maxDepth, long maxPages, int maxPerHost) {
+    this.maxDepth = maxDepth;
+    this.maxPages = maxPages;
+    this.maxPerHost = maxPerHost;
+  }
+
+  public boolean isDepthBounded() {
+    return maxDepth != UNBOUNDED;
+  }
+
+  /**
+   * Tell whether an URL found at some depth is within the maximum depth.
+   */
+  public boolean withinDepth(int depth) {
+    if (depth <= maxDepth)
+      return true;
+    tooDeep.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Charge a new URL to the budgets of the crawl and of its host.
+   *
+   * @param url
+   *          an URL seen for the first time
+   * @return <code>false</code> when a budget is exhausted, nothing being
+   *         charged then
+   */
+  public boolean admit(String url) {
+    if (pages.incrementAndGet() > maxPages) {
+      pages.decrementAndGet();
+      overBudget.incrementAndGet();
+      return false;
+    }
+    if (maxPerHost != UNBOUNDED) {
+      AtomicInteger count = hostPages.computeIfAbsent(HostFrontier.hostOf(url),
+          host -> new AtomicInteger(0));
+      if (count.incrementAndGet() > maxPerHost) {
+        count.decrementAndGet();
+        pages.decrementAndGet();
+        overHostBudget.incrementAndGet();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "budget: accepted=" + pages.get() + " rejected: depth="
+        + tooDeep.get() + " pages=" + overBudget.get() + " host="
+        + overHostBudget.get();
+  }
+}
@@ -0,0 +1,448 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Checkpoints of a crawl, so that a crawl which dies is resumed where it
+ * stopped instead of starting over. Rather than snapshots of the frontier and
+ * of the seen set, which would stop the crawl while written, it is an
+ * append-only log of three kinds of records:
+ * <ul>
+ * <li>'S', the 2-byte depth of the URL, a 2-byte length and the URL in
+ * UTF-8, when an URL is first seen;</li>
+ * <li>'D' and the 8-byte {@link Fingerprint} of the URL, when it has been
+ * fetched;</li>
+ * <li>'F', a 2-byte length and the URL in UTF-8, for an URL seen and fetched,
+ * only written by compaction.</li>
+ * </ul>
+ * The seen set is given by the S and F records, and the frontier, including
+ * the URLs which were being fetched, by the S records without a D record.
+ *
+ * The crawl threads only append the records to a buffer in memory. Every
+ * PERIOD, or sooner when the buffer holds BUFFER_SIZE bytes, a background
+ * thread swaps it for an empty one, writes it to the file and forces it to
+ * the disk: a crash loses at most the last PERIOD of the crawl, and the URLs
+ * seen then are found again from the pages fetched again.
+ *
+ * The journal holds one or two records per URL seen. When a crawl is resumed,
+ * it is first compacted to one: the S and D records of an URL fetched are
+ * replaced by an F record, and a record cut by a crash is dropped.
+ */
+public class CrawlJournal {
+
+  public static final long PERIOD = 5000; // milliseconds
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final byte SEEN = 'S';
+  private static final byte DONE = 'D';
+  private static final byte FETCHED = 'F';
+
+  private final Path path;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition wakeup = lock.newCondition();
+  // guarded by lock
+  private boolean closed = false;
+  private ByteArrayOutputStream records;
+  private DataOutputStream out; // over records
+  private long seen = 0;
+  private long done = 0;
+  private long checkpoints = 0;
+  private IOException failure;
+
+  // one checkpoint at a time, which alone writes the file
+  private final ReentrantLock writing = new ReentrantLock();
+  // guarded by writing
+  private FileOutputStream file;
+  private ByteArrayOutputStream spare = new ByteArrayOutputStream(BUFFER_SIZE);
+
+  // guarded by lock, set by open
+  private long restored = 0;
+  private long pending = 0;
+  // true while the current thread gives back the frontier, already journaled
+  private final ThreadLocal<Boolean> replaying = new ThreadLocal<Boolean>();
+  private Thread checkpointer;
+
+  /**
+   * The crawl being resumed, given back what the journal recorded.
+   */
+  public interface Replay {
+    /**
+     * An URL seen and fetched.
+     */
+    void fetched(String url);
+
+    /**
+     * An URL seen and not fetched yet, at the depth it was found.
+     */
+    void pending(String url, int depth);
+  }
+
+  /**
+   * @param path
+   *          the file of the journal
+   */
+  public CrawlJournal(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * What is done with the records read.
+   */
+  private interface Reader {
+    void done(long key) throws IOException;
+
+    void seen(String url, int depth, boolean fetched) throws IOException;
+  }
+
+  /**
+   * Start journaling, and the periodic checkpoints. When resuming, the
+   * journal left by a former crawl is compacted first, then the URLs fetched
+   * are given back to the crawl, and only once they all are, and new records
+   * may be appended, the others.
+   *
+   * @param resume
+   *          <code>true</code> to resume the crawl of the journal, if any,
+   *          <code>false</code> to start a new one
+   * @param replay
+   *          the crawl, adding the URLs it is given to its seen set, and the
+   *          pending ones to its frontier
+   * @return <code>true</code> when the crawl was resumed, <code>false</code>
+   *         when it starts from its seed
+   * @throws IOException
+   *           when the journal can't be read or written
+   */
+  public boolean open(boolean resume, Replay replay) throws IOException {
+    resume = resume && Files.exists(path);
+    if (resume)
+      compact();
+    lock.lock();
+    try {
+      records = new ByteArrayOutputStream(BUFFER_SIZE);
+      out = new DataOutputStream(records);
+    } finally {
+      lock.unlock();
+    }
+    writing.lock();
+    try {
+      file = new FileOutputStream(path.toFile(), resume);
+    } finally {
+      writing.unlock();
+    }
+    // not stopped by an interrupt, which would close the file while forced
+    checkpointer = new Thread(() -> {
+      while (awaitPeriod())
+        checkpoint();
+    }, "checkpoint");
+    checkpointer.setDaemon(true);
+    checkpointer.start();
+    if (!resume)
+      return false;
+    // the whole seen set is given back before the frontier, whose URLs may be
+    // fetched at once and link to URLs recorded after them
+    ArrayList<String> frontier = new ArrayList<String>();
+    ArrayList<Integer> depths = new ArrayList<Integer>();
+    long fetched = read(new Reader() {
+      @Override
+      public void done(long key) {
+        // none left by compaction
+      }
+
+      @Override
+      public void seen(String url, int depth, boolean wasFetched) {
+        if (wasFetched) {
+          replay.fetched(url);
+        } else {
+          frontier.add(url);
+          depths.add(depth);
+        }
+      }
+    });
+    lock.lock();
+    try {
+      restored = fetched + frontier.size();
+      pending = frontier.size();
+    } finally {
+      lock.unlock();
+    }
+    replaying.set(Boolean.TRUE);
+    try {
+      for (int i = 0; i < frontier.size(); i++)
+        replay.pending(frontier.get(i), depths.get(i));
+    } finally {
+      replaying.remove();
+    }
+    return fetched + frontier.size() > 0;
+  }
+
+  /**
+   * Rewrite the journal with one record per URL seen: the URLs fetched,
+   * given by the D records of a first reading, as F records. The new journal
+   * replaces the former one once on the disk.
+   */
+  private void compact() throws IOException {
+    FingerprintSet fetched = new FingerprintSet();
+    read(new Reader() {
+      @Override
+      public void done(long key) {
+        fetched.addFingerprint(key);
+      }
+
+      @Override
+      public void seen(String url, int depth, boolean wasFetched) {
+      }
+    });
+    Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+    try (FileOutputStream target = new FileOutputStream(compacted.toFile())) {
+      DataOutputStream copy = new DataOutputStream(new BufferedOutputStream(
+          target, BUFFER_SIZE));
+      read(new Reader() {
+        @Override
+        public void done(long key) {
+        }
+
+        @Override
+        public void seen(String url, int depth, boolean wasFetched)
+            throws IOException {
+          byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+          if (wasFetched || fetched.contains(url))
+            writeFetched(copy, bytes);
+          else
+            writeSeen(copy, bytes, depth);
+        }
+      });
+      copy.flush();
+      target.getChannel().force(false);
+    }
+    Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read the records up to the end of the journal, or to a record cut by a
+   * crash, which is dropped.
+   *
+   * @return the number of F records read
+   */
+  private long read(Reader reader) throws IOException {
+    long fetched = 0;
+    byte[] bytes = new byte[0xffff];
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        Files.newInputStream(path), BUFFER_SIZE * 16))) {
+      while (true) {
+        byte type = in.readByte();
+        if (type == DONE) {
+          reader.done(in.readLong());
+        } else if (type == SEEN || type == FETCHED) {
+          int depth = type == SEEN ? in.readUnsignedShort() : 0;
+          int length = in.readUnsignedShort();
+          in.readFully(bytes, 0, length);
+          reader.seen(new String(bytes, 0, length, StandardCharsets.UTF_8),
+              depth, type == FETCHED);
+          if (type == FETCHED)
+            fetched++;
+        } else {
+          break; // garbage at the end of the journal
+        }
+      }
+    } catch (EOFException e) {
+      // the end, or a record cut by a crash
+    }
+    return fetched;
+  }
+
+  private static void writeSeen(DataOutputStream out, byte[] bytes, int depth)
+      throws IOException {
+    out.writeByte(SEEN);
+    out.writeShort(Math.min(depth, 0xffff));
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeFetched(DataOutputStream out, byte[] bytes)
+      throws IOException {
+    out.writeByte(FETCHED);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Wait for the next checkpoint, at the end of the period or when the buffer
+   * is full.
+   *
+   * @return <code>false</code> when the journal is closed
+   */
+  private boolean awaitPeriod() {
+    lock.lock();
+    try {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(PERIOD);
+      while (!closed && remaining > 0 && records.size() < BUFFER_SIZE)
+        remaining = wakeup.awaitNanos(remaining);
+      return !closed;
+    } catch (InterruptedException e) {
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record an URL seen for the first time.
+   *
+   * @param url
+   *          the URL
+   * @param depth
+   *          the depth it was found at, kept up to 65535
+   */
+  public void seen(String url, int depth) {
+    if (replaying.get() != null)
+      return; // already in the journal
+    byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xffff)
+      return; // can't be fetched anyway
+    lock.lock();
+    try {
+      if (out == null || failure != null)
+        return;
+      writeSeen(out, bytes, depth);
+      seen++;
+      appended();
+    } catch (IOException e) {
+      fail(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record an URL fetched, or given up.
+   */
+  public void done(String url) {
+    long key = Fingerprint.of(url);
+    lock.lock();
+    try {
+      if (out == null || failure != null)
+        return;
+      out.writeByte(DONE);
+      out.writeLong(key);
+      done++;
+      appended();
+    } catch (IOException e) {
+      fail(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // called under lock: a full buffer is written without waiting for the period
+  private void appended() {
+    if (records.size() >= BUFFER_SIZE)
+      wakeup.signal();
+  }
+
+  private void fail(IOException e) {
+    failure = e;
+    System.err.println("no more checkpoints: " + e);
+  }
+
+  /**
+   * Write the records appended since the last checkpoint, and force them to
+   * the disk. The buffer is swapped for an empty one under the lock, the crawl
+   * threads appending to the latter while the former is written.
+   */
+  public void checkpoint() {
+    writing.lock();
+    try {
+      ByteArrayOutputStream full;
+      lock.lock();
+      try {
+        if (out == null || failure != null)
+          return;
+        full = records;
+        records = spare;
+        out = new DataOutputStream(records);
+        checkpoints++;
+      } finally {
+        lock.unlock();
+      }
+      try {
+        full.writeTo(file);
+      } catch (IOException e) {
+        lock.lock();
+        try {
+          fail(e);
+        } finally {
+          lock.unlock();
+        }
+        return;
+      }
+      full.reset();
+      spare = full;
+      try {
+        file.getChannel().force(false);
+      } catch (IOException e) {
+        System.err.println(e); // written, if not yet on the disk
+      }
+    } finally {
+      writing.unlock();
+    }
+  }
+
+  /**
+   * Take a last checkpoint and close the journal.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      wakeup.signal();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      if (checkpointer != null)
+        checkpointer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    checkpoint();
+    lock.lock();
+    try {
+      out = null;
+    } finally {
+      lock.unlock();
+    }
+    writing.lock();
+    try {
+      if (file != null)
+        file.close();
+      file = null;
+    } catch (IOException e) {
+      System.err.println(e);
+    } finally {
+      writing.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return "checkpoints: " + checkpoints + " seen=" + seen + " done=" + done
+          + (restored > 0 ? " restored=" + restored + " pending=" + pending : "");
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tells the thread dispatching the URLs of a crawl when there is work, and
+ * when the crawl is over, without polling. Tasks are counted when dispatched,
+ * not when they start running, and the URLs found by a task are enqueued
+ * before it finishes: hence the crawl is over exactly when the queue is empty
+ * and no task is in flight.
+ *
+ * The dispatcher waits on a condition, woken when an URL is enqueued or a task
+ * finishes; enqueuing only takes the lock when the dispatcher is waiting.
+ */
+public class CrawlTracker {
+
+  private final URLQueue queue;
+  private final AtomicInteger inFlight = new AtomicInteger(0);
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final AtomicInteger waiting = new AtomicInteger(0);
+
+  /**
+   * @param queue
+   *          the frontier of the crawl, its isEmpty being thread-safe
+   */
+  public CrawlTracker(URLQueue queue) {
+    this.queue = queue;
+  }
+
+  /**
+   * Count a task given an URL, before it is submitted.
+   */
+  public void dispatched() {
+    inFlight.incrementAndGet();
+  }
+
+  /**
+   * Report that a task is finished, after it has enqueued the URLs it found.
+   */
+  public void finished() {
+    if (inFlight.decrementAndGet() == 0 || waiting.get() > 0)
+      signal();
+  }
+
+  /**
+   * Report that an URL was enqueued.
+   */
+  public void enqueued() {
+    if (waiting.get() > 0)
+      signal();
+  }
+
+  private void signal() {
+    lock.lock();
+    try {
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until the queue has an URL, or the crawl is over.
+   *
+   * @return <code>true</code> when there is an URL to dispatch,
+   *         <code>false</code> when the crawl is over or the thread was
+   *         interrupted
+   */
+  public boolean awaitWork() {
+    if (!queue.isEmpty())
+      return true;
+    waiting.incrementAndGet();
+    lock.lock();
+    try {
+      // waiting is set before looking at the queue: an URL enqueued after
+      // this look signals the condition
+      while (queue.isEmpty()) {
+        if (inFlight.get() == 0)
+          return false;
+        changed.await();
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      lock.unlock();
+      waiting.decrementAndGet();
+    }
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+}
@@ -0,0 +1,167 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared cache of name resolutions in front of another {@link HostResolver}.
+ * Successful resolutions are kept for a positive TTL and failures for a
+ * shorter negative TTL. Concurrent lookups of the same host share a single
+ * resolution, and hosts may be prefetched in the background as soon as they
+ * are discovered, so that the fetch finds them already resolved.
+ */
+public class DnsCache implements HostResolver {
+
+  public static final long DEFAULT_TTL = 300000; // milliseconds
+  public static final long DEFAULT_NEGATIVE_TTL = 30000; // milliseconds
+  public static final int PREFETCH_THREADS = 4;
+
+  private static class Entry {
+    final CompletableFuture<InetAddress[]> addresses = new CompletableFuture<InetAddress[]>();
+    volatile long expires = Long.MAX_VALUE; // never while resolving
+  }
+
+  private final HostResolver resolver;
+  private final long ttl;
+  private final long negativeTtl;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final ExecutorService prefetcher;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong prefetches = new AtomicLong(0);
+  private final AtomicLong failures = new AtomicLong(0);
+
+  public DnsCache(HostResolver resolver) {
+    this(resolver, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+  }
+
+  /**
+   * @param resolver
+   *          the resolution actually performed on a miss
+   * @param ttl
+   *          how long, in milliseconds, addresses are kept
+   * @param negativeTtl
+   *          how long, in milliseconds, a failure is kept
+   */
+  public DnsCache(HostResolver resolver, long ttl, long negativeTtl) {
+    this.resolver = resolver;
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+    this.prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, r -> {
+      Thread thread = new Thread(r, "DnsCache");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Give the cached entry of a host, or start resolving it.
+   *
+   * @param executor
+   *          where to resolve on a miss, the calling thread when null
+   * @param prefetch
+   *          true when nobody is waiting for this resolution
+   */
+  private CompletableFuture<InetAddress[]> lookup(String host,
+      Executor executor, boolean prefetch) {
+    Entry entry = entries.get(host);
+    if (entry != null && System.currentTimeMillis() < entry.expires) {
+      if (!prefetch)
+        hits.incrementAndGet();
+      return entry.addresses;
+    }
+    Entry fresh = new Entry();
+    Entry current = entry == null ? entries.putIfAbsent(host, fresh)
+        : entries.replace(host, entry, fresh) ? null : entries.get(host);
+    if (current != null) { // someone else just started resolving it
+      if (!prefetch)
+        hits.incrementAndGet();
+      return current.addresses;
+    }
+    (prefetch ? prefetches : misses).incrementAndGet();
+    Runnable resolution = () -> {
+      try {
+        InetAddress[] addresses = resolver.resolve(host);
+        fresh.expires = System.currentTimeMillis() + ttl;
+        fresh.addresses.complete(addresses);
+      } catch (UnknownHostException | RuntimeException e) {
+        failures.incrementAndGet();
+        fresh.expires = System.currentTimeMillis() + negativeTtl;
+        fresh.addresses.completeExceptionally(e);
+      }
+    };
+    if (executor == null)
+      resolution.run();
+    else
+      executor.execute(resolution);
+    return fresh.addresses;
+  }
+
+  /**
+   * Give the addresses of a host, from the cache when possible, waiting for a
+   * resolution in progress if any.
+   */
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    try {
+      return lookup(host, null, false).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UnknownHostException)
+        throw (UnknownHostException) e.getCause();
+      throw new UnknownHostException(host + ": " + e.getCause());
+    }
+  }
+
+  /**
+   * Give the addresses of a host without blocking: a miss is resolved in the
+   * background.
+   *
+   * @param host
+   *          a host name or a literal address
+   * @return the addresses, completed exceptionally with an
+   *         UnknownHostException when the name can't be resolved
+   */
+  public CompletableFuture<InetAddress[]> resolveAsync(String host) {
+    return lookup(host, prefetcher, false);
+  }
+
+  /**
+   * Start resolving a host in the background, unless it is already cached.
+   *
+   * @param host
+   *          a host name or a literal address
+   */
+  public void prefetch(String host) {
+    lookup(host, prefetcher, true);
+  }
+
+  /**
+   * Start resolving the host of an http URL in the background.
+   *
+   * @param url
+   *          an absolute URL in raw form
+   */
+  public void prefetchHostOf(String url) {
+    int start = url.indexOf("://");
+    if (start < 0)
+      return;
+    start += 3;
+    int end = start;
+    while (end < url.length() && url.charAt(end) != '/'
+        && url.charAt(end) != ':')
+      end++;
+    if (end > start)
+      prefetch(url.substring(start, end));
+  }
+
+  @Override
+  public String toString() {
+    return "dns: hits=" + hits.get() + " misses=" + misses.get()
+        + " prefetched=" + prefetches.get() + " failures=" + failures.get();
+  }
+}
@@ -0,0 +1,205 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits on how long a query may take, so that a stalled or slow server can't
+ * hold a crawl worker forever: a timeout on establishing connections, a
+ * timeout on each wait for data, a deadline for the whole query, and a minimum
+ * throughput below which an answer is cut once a grace period has elapsed. It
+ * counts the queries aborted by each limit.
+ */
+public class FetchLimits {
+
+  public static final int DEFAULT_CONNECT_TIMEOUT = 2000; // milliseconds
+  public static final int DEFAULT_READ_TIMEOUT = 10000; // milliseconds
+  /**
+   * No deadline unless asked for: a large download would be cut, and not
+   * retried, however steadily it goes; the read timeout and the minimum
+   * throughput already catch stalled and slow servers.
+   */
+  public static final long DEFAULT_DEADLINE = 0; // milliseconds
+  public static final long DEFAULT_MIN_THROUGHPUT = 1024; // bytes per second
+  /** the time given to an answer before its throughput is checked */
+  public static final long GRACE = 5000; // milliseconds
+
+  /**
+   * The limits which may abort a query.
+   */
+  public enum Limit {
+    CONNECT, READ, DEADLINE, THROUGHPUT
+  }
+
+  public final int connectTimeout;
+  public final int readTimeout;
+  public final long deadline;
+  public final long minThroughput;
+  private final AtomicLongArray aborted = new AtomicLongArray(
+      Limit.values().length);
+
+  public FetchLimits() {
+    this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_DEADLINE,
+        DEFAULT_MIN_THROUGHPUT);
+  }
+
+  /**
+   * @param connectTimeout
+   *          timeout in milliseconds on connection establishing
+   * @param readTimeout
+   *          timeout in milliseconds on each wait for data, 0 for none
+   * @param deadline
+   *          the time in milliseconds a query may take as a whole, including
+   *          its redirections, 0 for none
+   * @param minThroughput
+   *          the minimum throughput in bytes per second of an answer after the
+   *          grace period, 0 for none
+   */
+  public FetchLimits(int connectTimeout, int readTimeout, long deadline,
+      long minThroughput) {
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.deadline = deadline;
+    this.minThroughput = minThroughput;
+  }
+
+  /**
+   * Give the deadline of a query.
+   *
+   * @param started
+   *          System.nanoTime() at the start of the query
+   * @return the System.nanoTime() at which the query is to be aborted, or
+   *         Long.MAX_VALUE when there is no deadline
+   */
+  public long deadlineOf(long started) {
+    return deadline == 0 ? Long.MAX_VALUE : started + deadline * 1000000;
+  }
+
+  /**
+   * Give the timeout to be used on establishing a connection, bounded by the
+   * deadline of the query.
+   *
+   * @param deadline
+   *          as given by {@link #deadlineOf}
+   * @return the timeout in milliseconds, or -1 when the deadline is over
+   */
+  public int connectTimeout(long deadline) {
+    long remaining = remainingMillis(deadline);
+    if (remaining <= 0)
+      return -1;
+    return (int) Math.min(connectTimeout, remaining);
+  }
+
+  private static long remainingMillis(long deadline) {
+    if (deadline == Long.MAX_VALUE)
+      return Long.MAX_VALUE;
+    return (deadline - System.nanoTime() + 999999) / 1000000;
+  }
+
+  /**
+   * Count a query aborted by a limit.
+   */
+  public void aborted(Limit limit) {
+    aborted.incrementAndGet(limit.ordinal());
+  }
+
+  public long getAborted(Limit limit) {
+    return aborted.get(limit.ordinal());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder("aborted:");
+    for (Limit limit : Limit.values())
+      s.append(' ').append(limit.name().toLowerCase()).append('=')
+          .append(aborted.get(limit.ordinal()));
+    return s.toString();
+  }
+
+  /**
+   * The input of a connection, enforcing the limits of the query it currently
+   * carries. Each read waits at most the read timeout, or up to the deadline
+   * when it is closer, and the throughput is checked from the first byte of
+   * the answer, the wait for the server being bounded by the timeouts. It is
+   * armed again for each query carried by the connection.
+   */
+  public static class Watchdog extends FilterInputStream {
+    private final Socket socket;
+    private FetchLimits limits; // null when not armed
+    private long deadline;
+    private long since; // System.nanoTime() at the first byte
+    private long received;
+    private int timeout = -1; // the current timeout of the socket
+    /** the limit which aborted the current query, or null */
+    Limit tripped;
+
+    public Watchdog(Socket socket) throws IOException {
+      super(socket.getInputStream());
+      this.socket = socket;
+    }
+
+    /**
+     * Apply limits to the next query carried by the connection.
+     *
+     * @param limits
+     *          the limits to be enforced
+     * @param deadline
+     *          as given by {@link FetchLimits#deadlineOf}
+     */
+    public void arm(FetchLimits limits, long deadline) {
+      this.limits = limits;
+      this.deadline = deadline;
+      this.since = 0;
+      this.received = 0;
+      this.tripped = null;
+    }
+
+    private SocketTimeoutException trip(Limit limit, String message) {
+      tripped = limit;
+      return new SocketTimeoutException(message);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (limits == null)
+        return in.read(b, off, len);
+      long remaining = remainingMillis(deadline);
+      if (remaining <= 0)
+        throw trip(Limit.DEADLINE, "deadline exceeded");
+      int wait = limits.readTimeout;
+      if (remaining < Integer.MAX_VALUE && (wait == 0 || remaining < wait))
+        wait = (int) remaining;
+      if (wait != timeout) {
+        socket.setSoTimeout(wait);
+        timeout = wait;
+      }
+      int n;
+      try {
+        n = in.read(b, off, len);
+      } catch (SocketTimeoutException e) {
+        if (remainingMillis(deadline) <= 0)
+          throw trip(Limit.DEADLINE, "deadline exceeded");
+        throw trip(Limit.READ, "read timed out");
+      }
+      if (n > 0) {
+        long now = System.nanoTime();
+        if (received == 0)
+          since = now;
+        received += n;
+        long elapsed = (now - since) / 1000000;
+        if (limits.minThroughput > 0 && elapsed > GRACE
+            && received * 1000 / elapsed < limits.minThroughput)
+          throw trip(Limit.THROUGHPUT, "throughput below "
+              + limits.minThroughput + " bytes/s");
+      }
+      return n;
+    }
+  }
+}
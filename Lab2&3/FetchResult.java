@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The outcome of a query by {@link Xurl#fetch}: the answer of the server, where
+ * the document has been stored, and how long it took.
+ */
+public class FetchResult {
+
+  /** the URL as requested, before any redirection */
+  public final String requestedURL;
+  /** the URL actually queried, after the redirections */
+  public String url;
+  /** status of the last answer, 0 when there was none */
+  public int status;
+  /** header of the last answer, null when there was none */
+  public ResponseHeader header;
+  /** set when the document was served from the cache */
+  public boolean fromCache;
+  /** target of a redirection handed to Xurl.redirectHandler, or null */
+  public String location;
+  /** the file holding the document, null when it was not retrieved */
+  public Path file;
+  /** number of bytes written to the file */
+  public long size;
+  /** why the document was not retrieved, or null */
+  public String error;
+  /** set when the failure is transient, so that the query may be retried */
+  public boolean retriable;
+  /** the limit which aborted the query, or null */
+  public FetchLimits.Limit aborted;
+  // System.nanoTime() at the start, the header of the answer and the end
+  long started;
+  long answered;
+  long finished;
+
+  FetchResult(String requestedURL) {
+    this.requestedURL = requestedURL;
+    this.url = requestedURL;
+    this.started = System.nanoTime();
+  }
+
+  /**
+   * Tell whether the document has been stored, from the network or the cache.
+   */
+  public boolean isSuccess() {
+    return file != null && error == null;
+  }
+
+  /**
+   * Give the time elapsed until the header of the answer was received,
+   * i.e. the connection and the wait for the server.
+   *
+   * @return the time in milliseconds, or -1 when no answer was received
+   */
+  public double latencyMillis() {
+    return answered == 0 ? -1 : (answered - started) / 1e6;
+  }
+
+  /**
+   * Give the time the whole query took.
+   *
+   * @return the time in milliseconds
+   */
+  public double elapsedMillis() {
+    return (finished - started) / 1e6;
+  }
+
+  /**
+   * Read the document from its file.
+   *
+   * @return a stream of the document, to be closed by the caller
+   * @throws IOException
+   *           when the document was not retrieved, or its file can't be read
+   */
+  public InputStream openBody() throws IOException {
+    if (file == null)
+      throw new IOException("no document for " + requestedURL
+          + (error == null ? "" : ": " + error));
+    return Files.newInputStream(file);
+  }
+
+  @Override
+  public String toString() {
+    return requestedURL + " -> " + status
+        + (fromCache ? " (cache)" : "")
+        + (error != null ? " " + error : " " + size + " bytes")
+        + String.format(" in %.1f ms", elapsedMillis());
+  }
+}
@@ -0,0 +1,32 @@
+/**
+ * 64-bit fingerprints of URLs, used as compact keys instead of the URLs
+ * themselves.
+ */
+public final class Fingerprint {
+
+  private Fingerprint() {
+  }
+
+  /**
+   * Hash the characters of an URL: FNV-1a followed by the MurmurHash3
+   * finalizer to spread the bits. Never returns 0, which may then be used as
+   * an empty marker.
+   *
+   * @param url
+   *          the URL in raw form
+   * @return a non-zero fingerprint
+   */
+  public static long of(CharSequence url) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0, n = url.length(); i < n; i++) {
+      h ^= url.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+}
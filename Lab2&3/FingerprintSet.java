@@ -0,0 +1,299 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrent set of the URLs seen by a crawl, keeping only their 64-bit
+ * {@link Fingerprint}s in open-addressing tables of longs: 8 bytes per slot
+ * instead of a String and a HashMap entry per URL. Tables may be allocated
+ * off-heap.
+ *
+ * Check-and-insert is lock-free: a key is stored by a CAS on the first empty
+ * slot of its probe sequence. When a table gets half full, a table twice as
+ * large is chained after it, and the empty slots met in the full one are
+ * sealed by a CAS before going on with the next table. Slots only go from
+ * empty to a key or to sealed, hence two threads adding the same URL always
+ * race for the same slot, and exactly one of them wins. The full tables are
+ * kept, so the memory used is at most twice the last table.
+ *
+ * An optional Bloom filter in front of the tables tells at once that a URL
+ * is new; its false positives are counted.
+ */
+public class FingerprintSet {
+
+  public static final int DEFAULT_CAPACITY = 1 << 16; // slots of the first table
+  /** bits of the Bloom filter per expected URL, for about 1% false positives */
+  public static final int BLOOM_BITS_PER_URL = 10;
+  private static final int BLOOM_HASHES = 7;
+
+  private static final long EMPTY = 0; // never a fingerprint
+  private static final long SEALED = Long.MIN_VALUE;
+
+  private static final VarHandle LONGS = MethodHandles
+      .arrayElementVarHandle(long[].class);
+  private static final VarHandle BYTES = MethodHandles
+      .byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  /**
+   * One open-addressing table of fingerprints, either a long[] or a direct
+   * buffer.
+   */
+  private static class Table {
+    final int shift; // the index of a key is given by its high bits
+    final int mask;
+    final int threshold;
+    final long[] slots;
+    final ByteBuffer direct;
+    final AtomicInteger size = new AtomicInteger(0);
+    final AtomicReference<Table> next = new AtomicReference<Table>();
+
+    Table(int capacity, boolean offHeap) {
+      int bits = Integer.numberOfTrailingZeros(capacity);
+      this.shift = 64 - bits;
+      this.mask = capacity - 1;
+      this.threshold = capacity / 2;
+      if (offHeap) {
+        this.slots = null;
+        this.direct = ByteBuffer.allocateDirect(capacity * 8 + 8).alignedSlice(8);
+      } else {
+        this.slots = new long[capacity];
+        this.direct = null;
+      }
+    }
+
+    long get(int i) {
+      return slots != null ? (long) LONGS.getVolatile(slots, i)
+          : (long) BYTES.getVolatile(direct, i << 3);
+    }
+
+    boolean cas(int i, long expected, long key) {
+      return slots != null ? LONGS.compareAndSet(slots, i, expected, key)
+          : BYTES.compareAndSet(direct, i << 3, expected, key);
+    }
+
+    int capacity() {
+      return mask + 1;
+    }
+  }
+
+  private final boolean offHeap;
+  private final Table first;
+  private final AtomicLong size = new AtomicLong(0);
+
+  // the Bloom filter, null when there is none
+  private final long[] bloom;
+  private final long bloomBits;
+  private final AtomicLong bloomNegatives = new AtomicLong(0);
+  private final AtomicLong bloomFalsePositives = new AtomicLong(0);
+
+  public FingerprintSet() {
+    this(DEFAULT_CAPACITY, false, 0);
+  }
+
+  /**
+   * @param capacity
+   *          the number of slots of the first table, rounded up to a power of
+   *          two; it holds half as many URLs before another table is added
+   * @param offHeap
+   *          true to allocate the tables as direct buffers, outside the heap
+   * @param expected
+   *          the expected number of URLs, to size a Bloom filter in front of
+   *          the tables; 0 for none
+   */
+  public FingerprintSet(int capacity, boolean offHeap, long expected) {
+    this.offHeap = offHeap;
+    int slots = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+    this.first = new Table(slots, offHeap);
+    if (expected > 0) {
+      long words = (expected * BLOOM_BITS_PER_URL + 63) / 64;
+      this.bloom = new long[(int) Math.min(words, Integer.MAX_VALUE - 8)];
+      this.bloomBits = (long) bloom.length * 64;
+    } else {
+      this.bloom = null;
+      this.bloomBits = 0;
+    }
+  }
+
+  /**
+   * Add an URL unless it is already there.
+   *
+   * @param url
+   *          the URL in raw form
+   * @return <code>true</code> when the URL was not in the set, for exactly
+   *         one of the threads adding it at the same time
+   */
+  public boolean add(CharSequence url) {
+    return addFingerprint(Fingerprint.of(url));
+  }
+
+  /**
+   * Add an URL given by its {@link Fingerprint} unless it is already there.
+   *
+   * @param key
+   *          the fingerprint of the URL
+   * @return <code>true</code> when the URL was not in the set
+   */
+  public boolean addFingerprint(long key) {
+    if (key == SEALED)
+      key++;
+    boolean known = bloom == null || !bloomPut(key);
+    boolean added = insert(key);
+    if (added) {
+      size.incrementAndGet();
+      if (known)
+        bloomFalsePositives.incrementAndGet();
+      else if (bloom != null)
+        bloomNegatives.incrementAndGet();
+    }
+    return added;
+  }
+
+  /**
+   * Tell whether an URL is in the set.
+   *
+   * @param url
+   *          the URL in raw form
+   */
+  public boolean contains(CharSequence url) {
+    return containsFingerprint(Fingerprint.of(url));
+  }
+
+  /**
+   * Tell whether an URL given by its {@link Fingerprint} is in the set.
+   *
+   * @param key
+   *          the fingerprint of the URL
+   */
+  public boolean containsFingerprint(long key) {
+    if (key == SEALED)
+      key++;
+    if (bloom != null && !bloomContains(key))
+      return false;
+    for (Table table = first; table != null; table = table.next.get()) {
+      for (int i = (int) (key >>> table.shift);; i = (i + 1) & table.mask) {
+        long slot = table.get(i);
+        if (slot == key)
+          return true;
+        if (slot == EMPTY)
+          return false;
+        if (slot == SEALED)
+          break; // may have been added to a next table
+      }
+    }
+    return false;
+  }
+
+  private boolean insert(long key) {
+    for (Table table = first;; table = nextOf(table)) {
+      int i = (int) (key >>> table.shift);
+      for (int probes = 0; probes <= table.mask;) {
+        long slot = table.get(i);
+        if (slot == key)
+          return false;
+        if (slot == SEALED)
+          break; // go on with the next table
+        if (slot == EMPTY) {
+          if (table.size.get() >= table.threshold)
+            seal(table, i); // then it is sealed, or taken meanwhile
+          else if (table.cas(i, EMPTY, key)) {
+            table.size.incrementAndGet();
+            return true;
+          }
+          continue; // look at the same slot again
+        }
+        probes++;
+        i = (i + 1) & table.mask;
+      }
+    }
+  }
+
+  private Table nextOf(Table table) {
+    Table next = table.next.get();
+    if (next == null) {
+      table.next.compareAndSet(null, new Table(table.capacity() * 2, offHeap));
+      next = table.next.get();
+    }
+    return next;
+  }
+
+  /**
+   * Seal an empty slot of a full table, so that no key is ever added past it
+   * in this table, and make sure a next table is there.
+   */
+  private void seal(Table table, int i) {
+    nextOf(table);
+    table.cas(i, EMPTY, SEALED);
+  }
+
+  /**
+   * Set the bits of a key in the Bloom filter.
+   *
+   * @return <code>true</code> when some bit was not set, the key being new
+   */
+  private boolean bloomPut(long key) {
+    boolean changed = false;
+    long h1 = key;
+    long h2 = key >>> 32 | 1;
+    for (int k = 0; k < BLOOM_HASHES; k++) {
+      long bit = Math.floorMod(h1 + k * h2, bloomBits);
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      if (((long) LONGS.getVolatile(bloom, word) & mask) == 0) {
+        LONGS.getAndBitwiseOr(bloom, word, mask);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private boolean bloomContains(long key) {
+    long h1 = key;
+    long h2 = key >>> 32 | 1;
+    for (int k = 0; k < BLOOM_HASHES; k++) {
+      long bit = Math.floorMod(h1 + k * h2, bloomBits);
+      if (((long) LONGS.getVolatile(bloom, (int) (bit >>> 6)) & 1L << bit) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Give the number of URLs in the set.
+   */
+  public long size() {
+    return size.get();
+  }
+
+  /**
+   * Give the share of the new URLs which the Bloom filter took as known.
+   *
+   * @return the rate, or -1 without Bloom filter
+   */
+  public double bloomFalsePositiveRate() {
+    if (bloom == null)
+      return -1;
+    long positives = bloomFalsePositives.get();
+    long total = positives + bloomNegatives.get();
+    return total == 0 ? 0 : (double) positives / total;
+  }
+
+  @Override
+  public String toString() {
+    int tables = 0;
+    long slots = 0;
+    for (Table table = first; table != null; table = table.next.get()) {
+      tables++;
+      slots += table.capacity();
+    }
+    String s = "seen: urls=" + size.get() + " tables=" + tables + " slots="
+        + slots + (offHeap ? " (off-heap)" : "");
+    if (bloom != null)
+      s += String.format(" bloom false positives=%.3f%%",
+          100 * bloomFalsePositiveRate());
+    return s;
+  }
+}
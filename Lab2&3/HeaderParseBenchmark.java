@@ -0,0 +1,161 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compare the former line-by-line header parsing, as done by Xurl before
+ * {@link HttpInput#readHeader}, with the parsing in place, on a stream of
+ * typical answer headers. Time and allocated bytes are given per header; the
+ * allocations are only measured when the JVM can count them per thread.
+ *
+ * Usage: java HeaderParseBenchmark [headers]
+ */
+public class HeaderParseBenchmark {
+
+  private static final int WARMUP = 5;
+  private static final int ROUNDS = 20;
+
+  private static final String[] ANSWERS = {
+      "HTTP/1.1 200 OK\r\n"
+          + "Date: Sat, 17 Oct 2026 10:00:00 GMT\r\n"
+          + "Server: Apache/2.4.41 (Ubuntu)\r\n"
+          + "Last-Modified: Mon, 12 Oct 2026 08:30:00 GMT\r\n"
+          + "ETag: \"2aa6-5b0f2e5c1a8c0\"\r\n"
+          + "Accept-Ranges: bytes\r\n"
+          + "Content-Length: 10918\r\n"
+          + "Cache-Control: max-age=3600, public\r\n"
+          + "Vary: Accept-Encoding\r\n"
+          + "Content-Type: text/html; charset=UTF-8\r\n\r\n",
+      "HTTP/1.1 200 OK\r\n"
+          + "date: Sat, 17 Oct 2026 10:00:01 GMT\r\n"
+          + "server: nginx\r\n"
+          + "content-type: text/css\r\n"
+          + "transfer-encoding: chunked\r\n"
+          + "connection: keep-alive\r\n"
+          + "content-encoding: gzip\r\n\r\n",
+      "HTTP/1.1 301 Moved Permanently\r\n"
+          + "Date: Sat, 17 Oct 2026 10:00:02 GMT\r\n"
+          + "Server: Apache\r\n"
+          + "Location: http://www.example.org/new/\r\n"
+          + "Content-Length: 0\r\n"
+          + "Content-Type: text/html; charset=iso-8859-1\r\n\r\n",
+      "HTTP/1.0 404 Not Found\r\n"
+          + "Content-Type: text/html\r\n"
+          + "Content-Length: 0\r\n"
+          + "Connection: close\r\n\r\n" };
+
+  private static long checksum = 0;
+
+  /**
+   * The parsing done by Xurl before HttpInput.readHeader: the header lines
+   * are read as strings, the status line is split, and the names are compared
+   * with their usual case only.
+   */
+  static ResponseHeader parseWithLines(HttpInput in) throws IOException {
+    String line = in.readLine();
+    if (line == null)
+      return null;
+    ResponseHeader header = new ResponseHeader();
+    String[] tokens = line.split(" ");
+    header.status = Integer.parseInt(tokens[1]);
+    boolean chunked = false;
+    do {
+      line = in.readLine();
+      if (line.startsWith("Content-Length: ")) {
+        header.length = Long.parseLong(line.substring(16).trim());
+      } else if (line.startsWith("Transfer-Encoding: ")) {
+        chunked = line.contains("chunked");
+      } else if (line.startsWith("Content-Type: ")) {
+        header.contentType = line.substring(14).trim();
+      } else if (line.startsWith("Content-Encoding: ")) {
+        header.contentEncoding = line.substring(18).trim().toLowerCase();
+      } else if (line.startsWith("Connection: ")) {
+        header.close = line.contains("close");
+      } else if (line.startsWith("Location: ")) {
+        header.location = line.substring(10).trim();
+      } else if (line.startsWith("ETag: ")) {
+        header.etag = line.substring(6).trim();
+      } else if (line.startsWith("Last-Modified: ")) {
+        header.lastModified = line.substring(15).trim();
+      } else if (line.startsWith("Cache-Control: ")) {
+        header.parseCacheControl(line.substring(15));
+      } else if (line.startsWith("Accept-Ranges: ")) {
+        header.acceptRanges = line.contains("bytes");
+      } else if (line.startsWith("Content-Range: ")) {
+        header.parseContentRange(line.substring(15));
+      }
+    } while (!"".equals(line));
+    if (chunked)
+      header.length = Xurl.CHUNKED;
+    return header;
+  }
+
+  static ResponseHeader parseInPlace(HttpInput in) throws IOException {
+    ResponseHeader header = new ResponseHeader();
+    if (!in.readStatusLine(header))
+      return null;
+    in.readHeader(header);
+    return header;
+  }
+
+  private interface Parser {
+    ResponseHeader parse(HttpInput in) throws IOException;
+  }
+
+  /**
+   * Give the bytes allocated so far by the current thread, or -1 when the JVM
+   * doesn't count them.
+   */
+  private static long allocated() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) bean;
+      if (counting.isThreadAllocatedMemorySupported()
+          && counting.isThreadAllocatedMemoryEnabled())
+        return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static int parseAll(Parser parser, byte[] stream) throws IOException {
+    HttpInput in = new HttpInput(new ByteArrayInputStream(stream));
+    int parsed = 0;
+    ResponseHeader header;
+    while ((header = parser.parse(in)) != null) {
+      checksum += header.status + header.length;
+      parsed++;
+    }
+    return parsed;
+  }
+
+  private static void measure(String name, Parser parser, byte[] stream)
+      throws IOException {
+    for (int i = 0; i < WARMUP; i++)
+      parseAll(parser, stream);
+    long parsed = 0;
+    long before = allocated();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++)
+      parsed += parseAll(parser, stream);
+    long elapsed = System.nanoTime() - start;
+    long after = allocated();
+    System.out.printf("%-8s %8.0f ns/header", name, (double) elapsed / parsed);
+    if (before >= 0 && after >= 0)
+      System.out.printf(" %8.0f B/header", (double) (after - before) / parsed);
+    System.out.println();
+  }
+
+  public static void main(String[] args) throws IOException {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    StringBuilder answers = new StringBuilder();
+    for (int i = 0; i < count; i++)
+      answers.append(ANSWERS[i % ANSWERS.length]);
+    byte[] stream = answers.toString().getBytes(StandardCharsets.ISO_8859_1);
+    System.out.println(count + " headers, " + stream.length + " bytes");
+    measure("lines", HeaderParseBenchmark::parseWithLines, stream);
+    measure("inplace", HeaderParseBenchmark::parseInPlace, stream);
+    if (checksum == 42)
+      System.out.println(); // keeps the results alive
+  }
+}
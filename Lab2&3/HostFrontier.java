@@ -0,0 +1,194 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Frontier partitioned by host, for politeness: each host has its own queue,
+ * at most maxPerHost of its URLs are fetched at the same time, and the
+ * fetches of a host start at least minDelay apart. The hosts which have URLs
+ * and room for another fetch are kept in a heap ordered by the time their
+ * next fetch is allowed, so that {@link #dequeue} always gives an URL which
+ * may be fetched at once, from whichever host is ready first.
+ *
+ * Each URL obtained by dequeue must be reported by {@link #done} once
+ * fetched.
+ */
+public class HostFrontier implements URLQueue {
+
+  public static final int DEFAULT_MAX_PER_HOST = 2;
+  public static final long DEFAULT_MIN_DELAY = 0; // milliseconds
+
+  private static class Host implements Comparable<Host> {
+    final String name;
+    final ArrayDeque<String> urls = new ArrayDeque<String>();
+    int active = 0; // URLs being fetched
+    long nextAllowed = 0; // System.nanoTime()
+    boolean ready = false; // in the heap
+
+    Host(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public int compareTo(Host other) {
+      return Long.compare(nextAllowed - other.nextAllowed, 0);
+    }
+  }
+
+  private final int maxPerHost;
+  private final long minDelay; // nanoseconds
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  // guarded by lock
+  private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+  private final PriorityQueue<Host> ready = new PriorityQueue<Host>();
+  private long size = 0;
+
+  public HostFrontier() {
+    this(DEFAULT_MAX_PER_HOST, DEFAULT_MIN_DELAY);
+  }
+
+  /**
+   * @param maxPerHost
+   *          the maximum number of URLs of a host fetched at the same time
+   * @param minDelay
+   *          the minimum time in milliseconds between the starts of two
+   *          fetches from the same host
+   */
+  public HostFrontier(int maxPerHost, long minDelay) {
+    this.maxPerHost = maxPerHost;
+    this.minDelay = TimeUnit.MILLISECONDS.toNanos(minDelay);
+  }
+
+  /**
+   * Give the host part of an URL, with its port if any.
+   *
+   * @param url
+   *          an absolute URL in raw form
+   * @return the host, or the whole URL when it has no host part
+   */
+  static String hostOf(String url) {
+    int start = url.indexOf("://");
+    if (start < 0)
+      return url;
+    start += 3;
+    int end = url.indexOf('/', start);
+    return url.substring(start, end < 0 ? url.length() : end);
+  }
+
+  public boolean isEmpty() {
+    lock.lock();
+    try {
+      return size == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isFull() {
+    return false;
+  }
+
+  public void enqueue(String url) {
+    lock.lock();
+    try {
+      String name = hostOf(url);
+      Host host = hosts.get(name);
+      if (host == null) {
+        host = new Host(name);
+        hosts.put(name, host);
+      }
+      host.urls.add(url);
+      size++;
+      if (offer(host))
+        changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Put a host in the heap when it has URLs and room for another fetch.
+   *
+   * @return <code>true</code> when it was added
+   */
+  private boolean offer(Host host) {
+    if (host.ready || host.urls.isEmpty() || host.active >= maxPerHost)
+      return false;
+    host.ready = true;
+    ready.add(host);
+    return true;
+  }
+
+  /**
+   * Remove an URL which may be fetched now, waiting for a host to be ready.
+   *
+   * @return the URL, to be reported by {@link #done} once fetched, or an
+   *         empty string when interrupted while waiting
+   */
+  public String dequeue() {
+    lock.lock();
+    try {
+      while (true) {
+        Host host = ready.peek();
+        if (host == null) {
+          changed.await();
+          continue;
+        }
+        long now = System.nanoTime();
+        long wait = host.nextAllowed - now;
+        if (wait > 0) {
+          changed.awaitNanos(wait); // or until another host gets ready
+          continue;
+        }
+        ready.poll();
+        host.ready = false;
+        String url = host.urls.poll();
+        size--;
+        host.active++;
+        host.nextAllowed = now + minDelay;
+        offer(host); // with its new time
+        return url;
+      }
+    } catch (InterruptedException e) {
+      return "";
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Report that an URL obtained by {@link #dequeue} has been fetched, making
+   * room for another fetch from its host.
+   *
+   * @param url
+   *          the URL as given by dequeue
+   */
+  public void done(String url) {
+    lock.lock();
+    try {
+      Host host = hosts.get(hostOf(url));
+      if (host == null || host.active == 0)
+        return;
+      host.active--;
+      if (offer(host))
+        changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return "frontier: queued=" + size + " hosts=" + hosts.size() + " ready="
+          + ready.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
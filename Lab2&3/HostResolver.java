@@ -0,0 +1,29 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Name resolution used to open connections. Replaceable, e.g. by an in-memory
+ * table when testing without a name server.
+ */
+public interface HostResolver {
+
+  /**
+   * Resolution by the system, through {@link InetAddress#getAllByName}.
+   */
+  HostResolver SYSTEM = new HostResolver() {
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      return InetAddress.getAllByName(host);
+    }
+  };
+
+  /**
+   * Give the addresses of a host.
+   * 
+   * @param host
+   *          a host name or a literal address
+   * @return at least one address
+   * @throws UnknownHostException
+   *           when the name can't be resolved
+   */
+  InetAddress[] resolve(String host) throws UnknownHostException;
+}
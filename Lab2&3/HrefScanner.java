@@ -0,0 +1,144 @@
+/**
+ * Single-pass scanner of the href attributes of anchor tags. Tag and
+ * attribute names are matched case-insensitively, and attribute values may
+ * be double-quoted, single-quoted or unquoted. Nothing is copied nor
+ * allocated: each value is reported as a pair of offsets into the input.
+ */
+public final class HrefScanner {
+
+  /**
+   * Receives the href values found by a scan.
+   */
+  public interface Callback {
+    /**
+     * @param input
+     *          the scanned characters
+     * @param start
+     *          the offset of the first character of the value
+     * @param end
+     *          the offset following the last character of the value
+     */
+    void href(CharSequence input, int start, int end);
+  }
+
+  private HrefScanner() {
+  }
+
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+
+  /**
+   * Report the href of every complete anchor tag in a range of the input.
+   *
+   * @param input
+   *          the characters to scan
+   * @param from
+   *          the offset where to start
+   * @param to
+   *          the offset where to stop
+   * @param callback
+   *          called for each href found
+   * @return the offset of the tag left incomplete at the end of the range, or
+   *         <code>to</code> when there is none
+   */
+  public static int scan(CharSequence input, int from, int to,
+      Callback callback) {
+    int i = from;
+    while (i < to) {
+      if (input.charAt(i) != '<') {
+        i++;
+        continue;
+      }
+      int tag = i;
+      if (i + 2 >= to)
+        return tag; // can't tell yet
+      char c = input.charAt(i + 1);
+      if ((c != 'a' && c != 'A') || !isSpace(input.charAt(i + 2))) {
+        i++;
+        continue;
+      }
+      // attributes up to the end of the tag, quoted values may contain '>'
+      int end = i + 3;
+      char quote = 0;
+      while (end < to) {
+        c = input.charAt(end);
+        if (quote != 0) {
+          if (c == quote)
+            quote = 0;
+        } else if (c == '"' || c == '\'') {
+          quote = c;
+        } else if (c == '>') {
+          break;
+        }
+        end++;
+      }
+      if (end == to)
+        return tag;
+      long href = findHref(input, i + 3, end);
+      if (href >= 0)
+        callback.href(input, (int) (href >>> 32), (int) href);
+      i = end + 1;
+    }
+    return to;
+  }
+
+  /**
+   * Find the href value among the attributes of a tag.
+   *
+   * @param input
+   *          the characters holding the attributes
+   * @param from
+   *          the offset of the first attribute
+   * @param to
+   *          the offset where the attributes end
+   * @return the start offset of the value in the high 32 bits and its end
+   *         offset in the low 32 bits, or -1 when there is no href attribute
+   */
+  public static long findHref(CharSequence input, int from, int to) {
+    int i = from;
+    while (i < to) {
+      while (i < to && isSpace(input.charAt(i)))
+        i++;
+      int name = i;
+      while (i < to) {
+        char c = input.charAt(i);
+        if (c == '=' || c == '/' || isSpace(c))
+          break;
+        i++;
+      }
+      boolean href = i - name == 4 && isHref(input, name);
+      while (i < to && isSpace(input.charAt(i)))
+        i++;
+      if (i < to && input.charAt(i) == '=') {
+        i++;
+        while (i < to && isSpace(input.charAt(i)))
+          i++;
+        int start = i;
+        int end;
+        if (i < to && (input.charAt(i) == '"' || input.charAt(i) == '\'')) {
+          char quote = input.charAt(i);
+          start = ++i;
+          while (i < to && input.charAt(i) != quote)
+            i++;
+          end = i++;
+        } else {
+          while (i < to && !isSpace(input.charAt(i)))
+            i++;
+          end = i;
+        }
+        if (href)
+          return (long) start << 32 | end;
+      } else if (i == name) {
+        i++; // a stray character such as '/'
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isHref(CharSequence input, int i) {
+    return (input.charAt(i) | 0x20) == 'h' && (input.charAt(i + 1) | 0x20) == 'r'
+        && (input.charAt(i + 2) | 0x20) == 'e'
+        && (input.charAt(i + 3) | 0x20) == 'f';
+  }
+}
@@ -0,0 +1,351 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * On-disk cache of downloaded documents with their validators (ETag,
+ * Last-Modified) and freshness (Cache-Control max-age). Fresh documents are
+ * served without any request; stale ones are revalidated with a conditional
+ * request, and served again from disk on a 304 answer.
+ *
+ * Documents are keyed by the {@link Fingerprint} of their URL. The index is
+ * kept in memory in least-recently-used order, and persisted as an
+ * append-only journal which is replayed when the cache is opened and
+ * compacted when it grows too long. The least recently used documents are
+ * evicted when the total size exceeds a bound.
+ */
+public class HttpCache {
+
+  public static final long DEFAULT_MAX_SIZE = 256L << 20; // bytes
+
+  private static final String JOURNAL = "journal";
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+
+  /**
+   * What is known about a cached document.
+   */
+  public static class Entry {
+    final long key;
+    final long size;
+    final String etag;
+    final String lastModified;
+    final String contentType;
+    volatile long expires; // milliseconds since the epoch
+
+    Entry(long key, long size, String etag, String lastModified,
+        String contentType, long expires) {
+      this.key = key;
+      this.size = size;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.contentType = contentType;
+      this.expires = expires;
+    }
+
+    public boolean isFresh() {
+      return System.currentTimeMillis() < expires;
+    }
+  }
+
+  /**
+   * A document being stored while it is downloaded. It only enters the cache
+   * once committed.
+   */
+  public class Writer {
+    private final long key;
+    private final ResponseHeader header;
+    private final Path temp;
+    private final FileChannel channel;
+    private long size = 0;
+
+    Writer(long key, ResponseHeader header) throws IOException {
+      this.key = key;
+      this.header = header;
+      this.temp = Files.createTempFile(directory, "body", ".tmp");
+      this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Append the bytes remaining in the given buffer.
+     */
+    public void write(ByteBuffer data) throws IOException {
+      size += data.remaining();
+      while (data.hasRemaining())
+        channel.write(data);
+    }
+
+    /**
+     * Make the stored document available.
+     */
+    public void commit() throws IOException {
+      channel.close();
+      Path body = bodyOf(key);
+      Files.createDirectories(body.getParent());
+      Files.move(temp, body, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      put(new Entry(key, size, header.etag, header.lastModified,
+          header.contentType, expiresOf(header)));
+    }
+
+    /**
+     * Drop the document, e.g. when its download failed.
+     */
+    public void abort() {
+      try {
+        channel.close();
+        Files.deleteIfExists(temp);
+      } catch (IOException e) {
+        System.err.println(e);
+      }
+    }
+  }
+
+  private final Path directory;
+  private final long maxSize;
+  private final ReentrantLock lock = new ReentrantLock();
+  // guarded by lock
+  private final LinkedHashMap<Long, Entry> index = new LinkedHashMap<Long, Entry>(
+      1024, 0.75f, true);
+  private long size = 0;
+  private DataOutputStream journal;
+  private long journalRecords = 0;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong revalidations = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  /**
+   * Open a cache, reloading the documents previously stored in its directory.
+   *
+   * @param directory
+   *          where the documents and the journal are stored
+   * @param maxSize
+   *          the total size of the documents, in bytes, above which the least
+   *          recently used ones are evicted
+   * @throws IOException
+   *           when the directory or the journal can't be used
+   */
+  public HttpCache(Path directory, long maxSize) throws IOException {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    Files.createDirectories(directory);
+    Path journalFile = directory.resolve(JOURNAL);
+    if (Files.exists(journalFile))
+      replay(journalFile);
+    compact();
+  }
+
+  private Path bodyOf(long key) {
+    String name = String.format("%016x", key);
+    return directory.resolve(name.substring(0, 2)).resolve(name.substring(2));
+  }
+
+  private static long expiresOf(ResponseHeader header) {
+    long now = System.currentTimeMillis();
+    return header.maxAge > 0 ? now + header.maxAge * 1000 : now;
+  }
+
+  private void replay(Path journalFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(journalFile)))) {
+      while (true) {
+        byte op = in.readByte();
+        long key = in.readLong();
+        if (op == PUT) {
+          Entry entry = new Entry(key, in.readLong(), readString(in),
+              readString(in), readString(in), in.readLong());
+          Entry old = index.put(key, entry);
+          size += entry.size - (old == null ? 0 : old.size);
+        } else {
+          Entry old = index.remove(key);
+          if (old != null)
+            size -= old.size;
+        }
+      }
+    } catch (EOFException e) {
+      // end of the journal, possibly a truncated last record
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    String s = in.readUTF();
+    return s.isEmpty() ? null : s;
+  }
+
+  private void writeRecord(byte op, Entry entry) throws IOException {
+    journal.writeByte(op);
+    journal.writeLong(entry.key);
+    if (op == PUT) {
+      journal.writeLong(entry.size);
+      journal.writeUTF(entry.etag == null ? "" : entry.etag);
+      journal.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+      journal.writeUTF(entry.contentType == null ? "" : entry.contentType);
+      journal.writeLong(entry.expires);
+    }
+    journalRecords++;
+  }
+
+  /**
+   * Rewrite the journal with only the live entries. Called with the lock
+   * held, or from the constructor.
+   */
+  private void compact() throws IOException {
+    if (journal != null)
+      journal.close();
+    Path temp = directory.resolve(JOURNAL + ".tmp");
+    journal = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(temp)));
+    journalRecords = 0;
+    for (Entry entry : index.values())
+      writeRecord(PUT, entry);
+    journal.close();
+    Path journalFile = directory.resolve(JOURNAL);
+    Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    journal = new DataOutputStream(new BufferedOutputStream(Files
+        .newOutputStream(journalFile, StandardOpenOption.APPEND)));
+  }
+
+  private void put(Entry entry) throws IOException {
+    lock.lock();
+    try {
+      Entry old = index.put(entry.key, entry);
+      size += entry.size - (old == null ? 0 : old.size);
+      writeRecord(PUT, entry);
+      Iterator<Entry> eldest = index.values().iterator();
+      while (size > maxSize && eldest.hasNext()) {
+        Entry victim = eldest.next();
+        if (victim == entry)
+          break;
+        eldest.remove();
+        size -= victim.size;
+        writeRecord(REMOVE, victim);
+        Files.deleteIfExists(bodyOf(victim.key));
+        evictions.incrementAndGet();
+      }
+      if (journalRecords > 2 * index.size() + 1024)
+        compact();
+      journal.flush();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Find the cached document of an URL, fresh or not.
+   *
+   * @param url
+   *          the requested (absolute) URL in raw form
+   * @return the entry of the document, or null when it is not cached
+   */
+  public Entry lookup(String url) {
+    lock.lock();
+    try {
+      return index.get(Fingerprint.of(url));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drop a document, e.g. when its body turns out to be missing.
+   */
+  public void remove(Entry entry) {
+    lock.lock();
+    try {
+      if (index.remove(entry.key, entry)) {
+        size -= entry.size;
+        writeRecord(REMOVE, entry);
+        journal.flush();
+        Files.deleteIfExists(bodyOf(entry.key));
+      }
+    } catch (IOException e) {
+      System.err.println(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Give the file holding a cached document, and count a hit when it is
+   * served without any request.
+   *
+   * @param entry
+   *          the entry of the document
+   * @param revalidated
+   *          true when the document has just been confirmed by a 304 answer
+   * @return the path of the document
+   */
+  public Path serve(Entry entry, boolean revalidated) {
+    if (!revalidated)
+      hits.incrementAndGet();
+    return bodyOf(entry.key);
+  }
+
+  /**
+   * Record that a cached document has been confirmed by a 304 answer,
+   * extending its freshness as given by this answer.
+   */
+  public void revalidated(Entry entry, ResponseHeader header) {
+    revalidations.incrementAndGet();
+    entry.expires = expiresOf(header);
+  }
+
+  /**
+   * Count a full download, and prepare to store its document when it is
+   * cacheable.
+   *
+   * @param url
+   *          the requested (absolute) URL in raw form
+   * @param header
+   *          the header of the answer
+   * @return a writer for the document, or null when it is not to be stored
+   */
+  public Writer store(String url, ResponseHeader header) {
+    misses.incrementAndGet();
+    if (header.noStore || (header.etag == null && header.lastModified == null
+        && header.maxAge <= 0))
+      return null; // would always have to be downloaded again
+    try {
+      return new Writer(Fingerprint.of(url), header);
+    } catch (IOException e) {
+      System.err.println(e);
+      return null;
+    }
+  }
+
+  /**
+   * Flush and close the journal.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      journal.close();
+    } catch (IOException e) {
+      System.err.println(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "cache: hits=" + hits.get() + " revalidated=" + revalidations.get()
+        + " misses=" + misses.get() + " evicted=" + evictions.get();
+  }
+}
@@ -0,0 +1,486 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered input of an HTTP connection, working on bytes: headers are parsed
+ * in place in the buffer, and bodies are delivered as raw bytes through the
+ * same buffer, so that nothing is read ahead of the current answer.
+ */
+public class HttpInput {
+
+  public static final int BUFFER_SIZE = 8192;
+
+  private final InputStream in;
+  // taken from the pool only while bytes are being received, when not null
+  private final BufferPool buffers;
+  private final int bufferSize;
+  private byte[] buffer;
+  private int position = 0;
+  private int limit = 0;
+  // the current line as a slice of the buffer, set by nextLine()
+  private int lineStart;
+  private int lineEnd;
+
+  // header names and tokens, in lower case
+  private static final byte[] HTTP = ascii("http/");
+  private static final byte[] CONTENT_LENGTH = ascii("content-length");
+  private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+  private static final byte[] CONTENT_TYPE = ascii("content-type");
+  private static final byte[] CONTENT_ENCODING = ascii("content-encoding");
+  private static final byte[] CONNECTION = ascii("connection");
+  private static final byte[] LOCATION = ascii("location");
+  private static final byte[] ETAG = ascii("etag");
+  private static final byte[] LAST_MODIFIED = ascii("last-modified");
+  private static final byte[] CACHE_CONTROL = ascii("cache-control");
+  private static final byte[] ACCEPT_RANGES = ascii("accept-ranges");
+  private static final byte[] CONTENT_RANGE = ascii("content-range");
+  private static final byte[] CHUNKED = ascii("chunked");
+  private static final byte[] CLOSE = ascii("close");
+  private static final byte[] BYTES = ascii("bytes");
+  private static final byte[] GZIP = ascii("gzip");
+  private static final byte[] X_GZIP = ascii("x-gzip");
+  private static final byte[] DEFLATE = ascii("deflate");
+  private static final byte[] IDENTITY = ascii("identity");
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  public HttpInput(InputStream in) {
+    this(in, BUFFER_SIZE);
+  }
+
+  public HttpInput(InputStream in, int size) {
+    this.in = in;
+    this.buffers = null;
+    this.bufferSize = size;
+    this.buffer = new byte[size];
+  }
+
+  /**
+   * Build an input whose buffer is taken from a pool when bytes are expected,
+   * and given back by {@link #release} while the connection is idle.
+   *
+   * @param buffers
+   *          the pool of buffers
+   */
+  public HttpInput(InputStream in, BufferPool buffers) {
+    this.in = in;
+    this.buffers = buffers;
+    this.bufferSize = buffers.getBufferSize();
+  }
+
+  private void take() {
+    if (buffer == null)
+      buffer = buffers.acquire();
+  }
+
+  /**
+   * Tell whether bytes have been received beyond what has been read.
+   */
+  public boolean hasBuffered() {
+    return position < limit;
+  }
+
+  /**
+   * Give the buffer back to its pool, the bytes received beyond what has been
+   * read being dropped. It is taken again by the next read.
+   */
+  public void release() {
+    if (buffers == null || buffer == null)
+      return;
+    buffers.release(buffer);
+    buffer = null;
+    position = limit = 0;
+  }
+
+  /**
+   * Refill the buffer when it has been entirely consumed.
+   *
+   * @return <code>false</code> at the end of the stream
+   */
+  private boolean fill() throws IOException {
+    if (position < limit)
+      return true;
+    take();
+    int n = in.read(buffer, 0, buffer.length);
+    if (n < 0)
+      return false;
+    position = 0;
+    limit = n;
+    return true;
+  }
+
+  /**
+   * Read a line terminated by LF or CRLF, the terminator being dropped.
+   *
+   * @return the line, or null when the end of the stream is reached before
+   *         any byte
+   * @throws IOException
+   *           when the stream can't be read
+   */
+  public String readLine() throws IOException {
+    StringBuilder line = null;
+    while (fill()) {
+      int start = position;
+      while (position < limit && buffer[position] != '\n')
+        position++;
+      int end = position;
+      boolean complete = position < limit;
+      if (complete)
+        position++; // skip the LF
+      if (line == null) {
+        if (complete) { // the usual case, no copy but the String itself
+          if (end > start && buffer[end - 1] == '\r')
+            end--;
+          return new String(buffer, start, end - start,
+              StandardCharsets.ISO_8859_1);
+        }
+        line = new StringBuilder();
+      }
+      for (int i = start; i < end; i++)
+        line.append((char) (buffer[i] & 0xff));
+      if (complete) {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r')
+          line.setLength(length - 1);
+        return line.toString();
+      }
+    }
+    return line == null ? null : line.toString();
+  }
+
+  /**
+   * Make the next line available as buffer[lineStart, lineEnd), without its
+   * terminator and without copying it. A line crossing the end of the buffer
+   * is moved to its beginning to be completed.
+   *
+   * @return <code>false</code> when the end of the stream is reached before
+   *         any byte
+   * @throws ProtocolException
+   *           when the line doesn't fit in the buffer
+   */
+  private boolean nextLine() throws IOException {
+    take();
+    int scanned = position;
+    while (true) {
+      while (scanned < limit && buffer[scanned] != '\n')
+        scanned++;
+      if (scanned < limit) {
+        lineStart = position;
+        lineEnd = scanned > position && buffer[scanned - 1] == '\r'
+            ? scanned - 1 : scanned;
+        position = scanned + 1;
+        return true;
+      }
+      if (position > 0) { // make room after the beginning of the line
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        scanned -= position;
+        limit -= position;
+        position = 0;
+      }
+      if (limit == buffer.length)
+        throw new ProtocolException(
+            "line longer than " + buffer.length + " bytes");
+      int n = in.read(buffer, limit, buffer.length - limit);
+      if (n < 0) {
+        if (position == limit)
+          return false;
+        lineStart = position; // the last line has no terminator
+        lineEnd = position = limit;
+        return true;
+      }
+      limit += n;
+    }
+  }
+
+  /**
+   * Tell whether buffer[start, end) is a given token, ignoring case.
+   *
+   * @param lower
+   *          the token in lower case
+   */
+  private boolean matches(int start, int end, byte[] lower) {
+    if (end - start != lower.length)
+      return false;
+    for (int i = 0; i < lower.length; i++) {
+      int b = buffer[start + i];
+      if (b >= 'A' && b <= 'Z')
+        b += 'a' - 'A';
+      if (b != lower[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Tell whether buffer[start, end) contains a given token, ignoring case.
+   *
+   * @param lower
+   *          the token in lower case
+   */
+  private boolean contains(int start, int end, byte[] lower) {
+    for (int i = start; i + lower.length <= end; i++)
+      if (matches(i, i + lower.length, lower))
+        return true;
+    return false;
+  }
+
+  private String string(int start, int end) {
+    return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  /**
+   * Read the status line of an answer, e.g. "HTTP/1.1 200 OK".
+   *
+   * @param header
+   *          where the status is recorded; an HTTP/1.0 answer is marked as
+   *          closing its connection
+   * @return <code>false</code> when the connection is closed before the answer
+   * @throws ProtocolException
+   *           when the line is not an HTTP status line
+   */
+  public boolean readStatusLine(ResponseHeader header) throws IOException {
+    if (!nextLine())
+      return false;
+    if (Xurl.SHOW_HEADER)
+      System.out.println(string(lineStart, lineEnd));
+    int i = lineStart + HTTP.length;
+    if (lineEnd - lineStart < 12 || !matches(lineStart, i, HTTP))
+      throw new ProtocolException("bad answered protocol");
+    if (buffer[i] == '1' && buffer[i + 1] == '.' && buffer[i + 2] == '0')
+      header.close = true;
+    while (i < lineEnd && buffer[i] != ' ')
+      i++;
+    while (i < lineEnd && buffer[i] == ' ')
+      i++;
+    int status = 0;
+    int digits = 0;
+    for (; i < lineEnd && buffer[i] >= '0' && buffer[i] <= '9'; i++, digits++)
+      status = status * 10 + buffer[i] - '0';
+    if (digits != 3)
+      throw new ProtocolException("bad status");
+    header.status = status;
+    return true;
+  }
+
+  /**
+   * Read the header fields following the status line, up to the empty line
+   * ending them. Names are matched in place ignoring case, and only the
+   * values which are kept are turned into strings.
+   *
+   * @param header
+   *          where the fields of interest are recorded
+   * @throws EOFException
+   *           when the connection is closed before the end of the header
+   * @throws ProtocolException
+   *           when a field of interest can't be parsed
+   */
+  public void readHeader(ResponseHeader header) throws IOException {
+    boolean chunked = false;
+    while (true) {
+      if (!nextLine())
+        throw new EOFException("can't get header");
+      if (Xurl.SHOW_HEADER)
+        System.out.println(string(lineStart, lineEnd));
+      if (lineStart == lineEnd)
+        break; // empty line at the end of header
+      int colon = lineStart;
+      while (colon < lineEnd && buffer[colon] != ':')
+        colon++;
+      if (colon == lineEnd)
+        continue; // not a field
+      int nameEnd = colon;
+      while (nameEnd > lineStart && isSpace(buffer[nameEnd - 1]))
+        nameEnd--;
+      int start = colon + 1;
+      int end = lineEnd;
+      while (start < end && isSpace(buffer[start]))
+        start++;
+      while (end > start && isSpace(buffer[end - 1]))
+        end--;
+      if (matches(lineStart, nameEnd, CONTENT_LENGTH)) {
+        long length = 0;
+        for (int i = start; i < end; i++) {
+          if (buffer[i] < '0' || buffer[i] > '9' || length > Long.MAX_VALUE / 10)
+            throw new ProtocolException("bad Content-Length");
+          length = length * 10 + buffer[i] - '0';
+        }
+        if (start == end)
+          throw new ProtocolException("bad Content-Length");
+        header.length = length;
+      } else if (matches(lineStart, nameEnd, TRANSFER_ENCODING)) {
+        chunked = contains(start, end, CHUNKED);
+      } else if (matches(lineStart, nameEnd, CONTENT_TYPE)) {
+        header.contentType = string(start, end);
+      } else if (matches(lineStart, nameEnd, CONTENT_ENCODING)) {
+        if (matches(start, end, GZIP))
+          header.contentEncoding = "gzip";
+        else if (matches(start, end, X_GZIP))
+          header.contentEncoding = "x-gzip";
+        else if (matches(start, end, DEFLATE))
+          header.contentEncoding = "deflate";
+        else if (!matches(start, end, IDENTITY))
+          header.contentEncoding = string(start, end).toLowerCase();
+      } else if (matches(lineStart, nameEnd, CONNECTION)) {
+        if (contains(start, end, CLOSE))
+          header.close = true;
+      } else if (matches(lineStart, nameEnd, LOCATION)) {
+        header.location = string(start, end);
+      } else if (matches(lineStart, nameEnd, ETAG)) {
+        header.etag = string(start, end);
+      } else if (matches(lineStart, nameEnd, LAST_MODIFIED)) {
+        header.lastModified = string(start, end);
+      } else if (matches(lineStart, nameEnd, CACHE_CONTROL)) {
+        header.parseCacheControl(string(start, end));
+      } else if (matches(lineStart, nameEnd, ACCEPT_RANGES)) {
+        header.acceptRanges = contains(start, end, BYTES);
+      } else if (matches(lineStart, nameEnd, CONTENT_RANGE)) {
+        header.parseContentRange(string(start, end));
+      }
+    }
+    if (chunked) // takes precedence over Content-Length
+      header.length = Xurl.CHUNKED;
+  }
+
+  /**
+   * Read bytes, first from the buffer, then directly from the underlying
+   * stream for large reads.
+   *
+   * @return the number of bytes read, or -1 at the end of the stream
+   * @throws IOException
+   *           when the stream can't be read
+   */
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (position == limit && len >= bufferSize)
+      return in.read(b, off, len);
+    if (!fill())
+      return -1;
+    int n = Math.min(len, limit - position);
+    System.arraycopy(buffer, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  /**
+   * Give a stream delivering the body of the current answer.
+   *
+   * @param length
+   *          the body length as given by Content-Length, Xurl.CHUNKED, or
+   *          Xurl.UNSPECIFIED when the body ends with the connection
+   * @return a stream which ends with the body
+   */
+  public Body body(long length) {
+    return new Body(length);
+  }
+
+  /**
+   * The body of one answer, either of known length, made of chunks whose
+   * framing is removed, or up to the end of the connection. The trailer
+   * following the last chunk is consumed.
+   */
+  public class Body extends InputStream {
+    private final boolean chunked;
+    private final boolean toEnd; // closed by the server at its end
+    private long remaining;
+    private boolean done = false;
+    private boolean truncated = false;
+    private long received = 0;
+
+    Body(long length) {
+      chunked = length == Xurl.CHUNKED;
+      toEnd = length == Xurl.UNSPECIFIED;
+      remaining = chunked ? 0 : toEnd ? Long.MAX_VALUE : length;
+      done = !chunked && length == 0;
+    }
+
+    /**
+     * Read the next chunk size, and the trailer after the last chunk.
+     */
+    private void nextChunk() throws IOException {
+      boolean more = nextLine();
+      if (more && lineStart == lineEnd) // the CRLF ending a chunk
+        more = nextLine();
+      if (!more) {
+        done = truncated = true;
+        return;
+      }
+      int i = lineStart;
+      while (i < lineEnd && isSpace(buffer[i]))
+        i++;
+      int digits = 0;
+      remaining = 0;
+      for (; i < lineEnd; i++, digits++) { // up to chunk extensions, ignored
+        int digit = Character.digit(buffer[i], 16);
+        if (digit < 0)
+          break;
+        if (remaining > Long.MAX_VALUE >> 4)
+          throw new ProtocolException("bad chunk size");
+        remaining = remaining << 4 | digit;
+      }
+      if (digits == 0)
+        throw new ProtocolException("bad chunk size");
+      if (Xurl.VERBOSE)
+        System.out.println("CHUNK LENGTH = " + remaining);
+      if (remaining == 0) {
+        // skip the trailer up to its terminating empty line
+        do {
+          more = nextLine();
+        } while (more && lineStart != lineEnd);
+        done = true;
+        truncated = !more;
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (!done && chunked && remaining == 0)
+        nextChunk();
+      if (done)
+        return -1;
+      int n = HttpInput.this.read(b, off, (int) Math.min(len, remaining));
+      if (n < 0) { // reached EOF
+        done = true;
+        truncated = !toEnd;
+        return -1;
+      }
+      remaining -= n;
+      received += n;
+      if (!chunked && remaining == 0)
+        done = true;
+      return n;
+    }
+
+    /**
+     * Give the number of body bytes read so far, without the chunk framing.
+     */
+    public long received() {
+      return received;
+    }
+
+    /**
+     * Tell whether the whole body has been read, and only it.
+     *
+     * @return <code>true</code> when the end of the body has been reached
+     *         without the connection being closed before
+     */
+    public boolean isComplete() {
+      return done && !truncated;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental extractor of the links of a document. The document is pushed
+ * in successive slices, as they are received, and an anchor tag split
+ * between two slices is carried over to the next one. Only the attributes of
+ * anchor tags are ever copied; the rest of the document is scanned in place.
+ * Links are reported to {@link URLprocessing#handler} as soon as their tag is
+ * complete.
+ */
+public class LinkExtractor {
+
+  public static final int MAX_TAG_LENGTH = 8192;
+  private static final int DECODE_SIZE = 8192;
+
+  private enum State {
+    TEXT, // outside any tag
+    TAG_START, // just after '<'
+    TAG_A, // just after "<a"
+    ANCHOR, // inside the attributes of an anchor tag
+    OTHER_TAG // inside any other tag
+  }
+
+  private State state = State.TEXT;
+  private final StringBuilder attributes = new StringBuilder();
+  private char quote = 0; // the quote opened inside an anchor tag, if any
+  // only used when bytes must be decoded
+  private final CharsetDecoder decoder;
+  private ByteBuffer undecoded;
+  private CharBuffer decoded;
+
+  /**
+   * Build an extractor for documents given as chars, or as bytes of an ASCII
+   * compatible encoding.
+   */
+  public LinkExtractor() {
+    this(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Build an extractor for documents given as bytes in the specified charset.
+   *
+   * @param charset
+   *          the charset of the documents
+   */
+  public LinkExtractor(Charset charset) {
+    decoder = isAsciiCompatible(charset) ? null
+        : charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * Tell whether ASCII characters, i.e. markup and URLs, are encoded as single
+   * bytes with the same value in the given charset.
+   */
+  private static boolean isAsciiCompatible(Charset charset) {
+    String name = charset.name();
+    return name.equals("UTF-8") || name.equals("US-ASCII")
+        || name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+  }
+
+  /**
+   * Scan the next slice of the document.
+   *
+   * @param data
+   *          the next characters of the document
+   */
+  public void push(CharSequence data) {
+    for (int i = 0, n = data.length(); i < n; i++)
+      accept(data.charAt(i));
+  }
+
+  /**
+   * Scan the next slice of a document given as bytes. When its encoding is
+   * ASCII compatible (ISO-8859-*, UTF-8, ...), bytes are scanned without
+   * decoding: markup and valid URLs are only made of ASCII characters.
+   * Otherwise they are decoded, a character split between two slices being
+   * carried over.
+   *
+   * @param data
+   *          the buffer holding the bytes
+   * @param offset
+   *          the position of the first byte of the slice
+   * @param length
+   *          the number of bytes of the slice
+   */
+  public void push(byte[] data, int offset, int length) {
+    if (decoder == null) {
+      for (int i = offset, end = offset + length; i < end; i++)
+        accept((char) (data[i] & 0xff));
+      return;
+    }
+    if (undecoded == null) {
+      undecoded = ByteBuffer.allocate(DECODE_SIZE);
+      decoded = CharBuffer.allocate(DECODE_SIZE);
+    }
+    while (length > 0) {
+      int n = Math.min(length, undecoded.remaining());
+      undecoded.put(data, offset, n);
+      offset += n;
+      length -= n;
+      undecoded.flip();
+      do {
+        decoded.clear();
+        decoder.decode(undecoded, decoded, false);
+        decoded.flip();
+        push(decoded);
+      } while (decoded.limit() == decoded.capacity());
+      undecoded.compact(); // keeps the bytes of a split character
+    }
+  }
+
+  /**
+   * Tell that the document is complete. An unterminated tag is dropped, and
+   * this extractor may be used again for another document.
+   */
+  public void finish() {
+    if (undecoded != null) {
+      undecoded.clear();
+      decoder.reset();
+    }
+    state = State.TEXT;
+    attributes.setLength(0);
+    quote = 0;
+  }
+
+  private void accept(char c) {
+    switch (state) {
+    case TEXT:
+      if (c == '<')
+        state = State.TAG_START;
+      break;
+    case TAG_START:
+      state = c == 'a' || c == 'A' ? State.TAG_A
+          : c == '<' ? State.TAG_START : c == '>' ? State.TEXT
+              : State.OTHER_TAG;
+      break;
+    case TAG_A:
+      if (Character.isWhitespace(c)) {
+        state = State.ANCHOR;
+        attributes.setLength(0);
+        quote = 0;
+      } else {
+        state = c == '>' ? State.TEXT : State.OTHER_TAG;
+      }
+      break;
+    case ANCHOR:
+      if (quote != 0) {
+        if (c == quote)
+          quote = 0;
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '>') {
+        state = State.TEXT;
+        extract(attributes);
+        break;
+      }
+      if (attributes.length() < MAX_TAG_LENGTH)
+        attributes.append(c);
+      else
+        state = State.OTHER_TAG; // not a sensible tag, give up on it
+      break;
+    case OTHER_TAG:
+      if (c == '>')
+        state = State.TEXT;
+      break;
+    }
+  }
+
+  /**
+   * Report the href of a complete anchor tag.
+   */
+  private static void extract(CharSequence tag) {
+    long href = HrefScanner.findHref(tag, 0, tag.length());
+    if (href >= 0)
+      URLprocessing.report(tag, (int) (href >>> 32), (int) href);
+  }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compare the former regex-based link parsing with {@link HrefScanner} on
+ * whole pages. Pages are given as local files (e.g. saved by Wget); a
+ * synthetic page is used when none is given.
+ *
+ * Usage: java LinkScanBenchmark [page ...]
+ */
+public class LinkScanBenchmark {
+
+  private static final int WARMUP = 20;
+  private static final int ROUNDS = 50;
+
+  private static long links = 0;
+
+  /**
+   * The parsing done by URLprocessing.parseDocument before the scanner.
+   */
+  static void parseWithRegex(CharSequence data) {
+    String line = data.toString().replaceAll(">", ">\n");
+    String regex = "<[a|A].*[h|H][r|R][e|E][f|F]\\s*=\\s*(\"(.*)\"|\'(.*)\').*>";
+    Pattern pattern = Pattern.compile(regex);
+    Matcher matcher = pattern.matcher(line);
+    while (matcher.find()) {
+      String url = matcher.group(1).replaceAll("\'", "").replaceAll("\"", "");
+      try {
+        new MyURL(url);
+      } catch (IllegalArgumentException e) {
+        continue;
+      }
+      if (url.contains("http://"))
+        URLprocessing.handler.takeUrl(url);
+    }
+  }
+
+  private static String syntheticPage() {
+    StringBuilder page = new StringBuilder("<html><head><title>t</title>");
+    page.append("<link href=\"style.css\" rel=\"stylesheet\"></head><body>\n");
+    for (int i = 0; i < 5000; i++) {
+      page.append("<p class=\"item\">Some text <b>bold</b> and more text ");
+      if (i % 3 == 0) // the greedy regex misses the ones with a title
+        page.append("<a href=\"http://www.example.org/page").append(i)
+            .append(i % 2 == 0 ? ".html\">link</a>" : ".html\" title=\"x\">link</a>");
+      else if (i % 3 == 1)
+        page.append("<A HREF='relative/").append(i).append(".html'>rel</A>");
+      page.append("</p>\n");
+    }
+    return page.append("</body></html>").toString();
+  }
+
+  private interface Parser {
+    void parse(CharSequence page);
+  }
+
+  private static void measure(String name, Parser parser, List<String> pages,
+      long size) {
+    for (int i = 0; i < WARMUP; i++)
+      for (String page : pages)
+        parser.parse(page);
+    links = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++)
+      for (String page : pages)
+        parser.parse(page);
+    long elapsed = System.nanoTime() - start;
+    double perPage = (double) elapsed / ROUNDS / pages.size();
+    double throughput = (double) size * ROUNDS / elapsed * 1e9 / (1 << 20);
+    System.out.printf("%-8s %12.0f ns/page %10.1f MB/s %8d links/round%n",
+        name, perPage, throughput, links / ROUNDS);
+  }
+
+  public static void main(String[] args) throws IOException {
+    List<String> pages = new ArrayList<String>();
+    for (String arg : args)
+      pages.add(new String(Files.readAllBytes(Paths.get(arg)),
+          StandardCharsets.ISO_8859_1));
+    if (pages.isEmpty())
+      pages.add(syntheticPage());
+    long size = 0;
+    for (String page : pages)
+      size += page.length();
+    URLprocessing.handler = new URLprocessing.URLhandler() {
+      public void takeUrl(String url) {
+        links++;
+      }
+    };
+    System.out.println(pages.size() + " page(s), " + size + " chars");
+    measure("regex", LinkScanBenchmark::parseWithRegex, pages, size);
+    measure("scanner", URLprocessing::parseDocument, pages, size);
+  }
+}
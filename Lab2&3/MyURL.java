@@ -7,9 +7,9 @@ public class MyURL {
   private final int port;
   private final String path;
 
-  public MyURL(String url) {
-    if (url == null)
-      throw new IllegalArgumentException("Invalid url: " + url);
+  private static final Pattern pattern = compile();
+
+  private static Pattern compile() {
     String scheme = "(\\p{Alpha}[\\p{Alnum}+-.]*)";
     String domain = "(?:\\p{Alnum}(?:[\\p{Alnum}-]*\\p{Alnum})\\.)*";
     String top_label = "(?:\\p{Alpha}(?:[\\p{Alnum}-]*\\p{Alnum})?)";
@@ -22,7 +22,23 @@ public class MyURL {
     // here, a leading / is required
     String full_path = "(/(?:[\\p{Graph}^[/?#]]*/)*(?:[\\p{Graph}^[/?#]]*)?)";
     String reg_exp = "^" + scheme + "://" + authority + full_path + "$";
-    Pattern pattern = Pattern.compile(reg_exp);
+    return Pattern.compile(reg_exp);
+  }
+
+  /**
+   * Tell whether the given string is a valid URL, without building it.
+   * 
+   * @param url
+   *          the url to check
+   * @return <code>true</code> when the constructor would accept it
+   */
+  public static boolean isValid(CharSequence url) {
+    return url != null && pattern.matcher(url).find();
+  }
+
+  public MyURL(String url) {
+    if (url == null)
+      throw new IllegalArgumentException("Invalid url: " + url);
     Matcher matcher = pattern.matcher(url);
     if (matcher.find()) {
       protocol = matcher.group(1);
@@ -0,0 +1,520 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking HTTP client running many fetches on a single event-loop thread
+ * with a {@link Selector}. Each fetch goes through its own incremental state
+ * machine (status line, header lines, then a body delimited by its length, by
+ * chunks, or by the end of the connection), so that it only progresses when
+ * its channel is ready. Like {@link Xurl}, the documents are stored in local
+ * files and handed to {@link URLprocessing} to find their links.
+ */
+public class NioFetcher implements Runnable {
+
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+  public static final int BUFFER_SIZE = 8192;
+  public static final int MAX_LINE_LENGTH = 8192;
+  public static final int MAX_REDIRECTS = 5;
+  /** how often the fetches are checked against Xurl.limits */
+  public static final long CHECK_PERIOD = 1000; // milliseconds
+
+  private enum State {
+    CONNECTING, SENDING, STATUS_LINE, HEADER, BODY, CHUNK_SIZE, CHUNK_DATA,
+    CHUNK_END, TRAILER, BODY_TO_EOF, DONE
+  }
+
+  /**
+   * The state of one fetch, only accessed from the event-loop thread.
+   */
+  private static class Fetch {
+    final String requestedURL;
+    final int redirects;
+    MyURL url;
+    String fileName;
+    SocketChannel channel;
+    ByteBuffer request;
+    final StringBuilder line = new StringBuilder();
+    boolean lineComplete;
+    State state = State.CONNECTING;
+    int status;
+    long contentLength = -1;
+    boolean chunked;
+    String location;
+    long remaining;
+    FileChannel file;
+    final LinkExtractor extractor = new LinkExtractor();
+    long lastProgress;
+    long started;
+    long firstByte; // when the first byte of the answer was received
+    long received;
+
+    Fetch(String requestedURL, int redirects) {
+      this.requestedURL = requestedURL;
+      this.redirects = redirects;
+    }
+  }
+
+  private final String proxyHost;
+  private final int proxyPort;
+  private final int maxInFlight;
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Fetch> submitted = new ConcurrentLinkedQueue<Fetch>();
+  // event-loop thread only
+  private final ArrayDeque<Fetch> waiting = new ArrayDeque<Fetch>();
+  private final HashSet<Fetch> active = new HashSet<Fetch>();
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition idle = lock.newCondition();
+  private int outstanding = 0; // submitted but not finished yet
+  private volatile boolean closed = false;
+  private Thread thread;
+
+  private final AtomicLong fetched = new AtomicLong(0);
+  private final AtomicLong failed = new AtomicLong(0);
+
+  /**
+   * @param proxyHost
+   *          the target host for the TCP connections when not null, otherwise
+   *          the connection target (host and port) is picked from each URL
+   * @param proxyPort
+   *          the target port when a proxyHost is specified; a negative port
+   *          number specifies the default HTTP port
+   * @param maxInFlight
+   *          the maximum number of simultaneously open connections
+   * @throws IOException
+   *           when the selector can't be opened
+   */
+  public NioFetcher(String proxyHost, int proxyPort, int maxInFlight)
+      throws IOException {
+    this.proxyHost = proxyHost;
+    this.proxyPort = proxyPort < 0 ? 80 : proxyPort;
+    this.maxInFlight = maxInFlight;
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Start the event-loop thread.
+   */
+  public void start() {
+    thread = new Thread(this, "NioFetcher");
+    thread.start();
+  }
+
+  /**
+   * Schedule the fetch of an URL. May be called from any thread, including
+   * the event loop itself through the URL handler.
+   *
+   * @param url
+   *          the requested (absolute) URL in raw form
+   */
+  public void submit(String url) {
+    submit(new Fetch(url, 0));
+  }
+
+  private void submit(Fetch fetch) {
+    lock.lock();
+    try {
+      outstanding++;
+    } finally {
+      lock.unlock();
+    }
+    submitted.add(fetch);
+    selector.wakeup();
+  }
+
+  /**
+   * Wait until every submitted fetch, including the ones submitted meanwhile,
+   * is finished.
+   *
+   * @throws InterruptedException
+   *           when interrupted while waiting
+   */
+  public void awaitIdle() throws InterruptedException {
+    lock.lock();
+    try {
+      while (outstanding > 0)
+        idle.await();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop the event loop, aborting the fetches still in progress.
+   */
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    if (thread != null && thread != Thread.currentThread()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!closed) {
+        selector.select(CHECK_PERIOD);
+        Fetch fetch;
+        while ((fetch = submitted.poll()) != null)
+          waiting.add(fetch);
+        while (active.size() < maxInFlight && (fetch = waiting.poll()) != null)
+          start(fetch);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          handle(key, (Fetch) key.attachment());
+        }
+        expire();
+      }
+    } catch (IOException e) {
+      System.err.println(e);
+    } finally {
+      for (Fetch fetch : new ArrayDeque<Fetch>(active))
+        fail(fetch, "aborted");
+      try {
+        selector.close();
+      } catch (IOException e) {
+        System.err.println(e);
+      }
+    }
+  }
+
+  private void start(Fetch fetch) {
+    try {
+      fetch.url = new MyURL(fetch.requestedURL);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e);
+      finish(fetch, false);
+      return;
+    }
+    if (!"http".equals(fetch.url.getProtocol())) {
+      System.err.println("unsupported protocol " + fetch.url.getProtocol());
+      finish(fetch, false);
+      return;
+    }
+    String host = fetch.url.getHost();
+    int port = fetch.url.getPort() < 0 ? 80 : fetch.url.getPort();
+    String target = fetch.url.getPath();
+    if (proxyHost != null) {
+      host = proxyHost;
+      port = proxyPort;
+      target = fetch.requestedURL;
+    }
+    // resolve without blocking the event loop, the fetch being started again
+    // once the name is known
+    CompletableFuture<InetAddress[]> addresses = Xurl.dns.resolveAsync(host);
+    if (!addresses.isDone()) {
+      addresses.whenComplete((a, e) -> {
+        submitted.add(fetch);
+        selector.wakeup();
+      });
+      return;
+    }
+    InetAddress address;
+    try {
+      address = addresses.join()[0];
+    } catch (CompletionException e) {
+      fail(fetch, e.getCause().toString());
+      return;
+    }
+    fetch.fileName = Xurl.fileNameOf(fetch.url);
+    fetch.request = ByteBuffer.wrap(("GET " + target + " HTTP/1.1\r\n"
+        + "Host: " + fetch.url.getHost() + "\r\n"
+        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    fetch.started = fetch.lastProgress = System.currentTimeMillis();
+    active.add(fetch);
+    try {
+      fetch.channel = SocketChannel.open();
+      fetch.channel.configureBlocking(false);
+      if (fetch.channel.connect(new InetSocketAddress(address, port))) {
+        fetch.state = State.SENDING;
+        fetch.channel.register(selector, SelectionKey.OP_WRITE, fetch);
+      } else {
+        fetch.channel.register(selector, SelectionKey.OP_CONNECT, fetch);
+      }
+    } catch (IOException e) {
+      fail(fetch, e.toString());
+    }
+  }
+
+  private void handle(SelectionKey key, Fetch fetch) {
+    try {
+      if (!key.isValid())
+        return;
+      if (key.isConnectable() && fetch.channel.finishConnect()) {
+        fetch.state = State.SENDING;
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
+      if (key.isValid() && key.isWritable()) {
+        fetch.channel.write(fetch.request);
+        if (!fetch.request.hasRemaining()) {
+          fetch.state = State.STATUS_LINE;
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      }
+      if (key.isValid() && key.isReadable()) {
+        buffer.clear();
+        int n = fetch.channel.read(buffer);
+        if (n < 0) {
+          if (fetch.state == State.BODY_TO_EOF)
+            finish(fetch, true);
+          else
+            fail(fetch, "connection closed by server");
+          return;
+        }
+        if (fetch.received == 0)
+          fetch.firstByte = System.currentTimeMillis();
+        fetch.received += n;
+        buffer.flip();
+        process(fetch, buffer);
+      }
+      fetch.lastProgress = System.currentTimeMillis();
+    } catch (IOException e) {
+      fail(fetch, e.toString());
+    } catch (RuntimeException e) { // malformed answer
+      fail(fetch, e.toString());
+    }
+  }
+
+  /**
+   * Feed the received bytes to the state machine of a fetch.
+   */
+  private void process(Fetch fetch, ByteBuffer data) throws IOException {
+    while (data.hasRemaining() && fetch.state != State.DONE) {
+      switch (fetch.state) {
+      case STATUS_LINE:
+        if (readLine(fetch, data)) {
+          String[] tokens = fetch.line.toString().split(" ");
+          if (!tokens[0].startsWith("HTTP") || tokens.length < 2)
+            throw new IllegalStateException("bad answered protocol");
+          fetch.status = Integer.parseInt(tokens[1]);
+          fetch.state = State.HEADER;
+        }
+        break;
+      case HEADER:
+        if (readLine(fetch, data)) {
+          if (fetch.line.length() == 0)
+            endOfHeader(fetch);
+          else
+            parseHeaderLine(fetch, fetch.line.toString());
+        }
+        break;
+      case BODY:
+      case CHUNK_DATA: {
+        int n = (int) Math.min(fetch.remaining, data.remaining());
+        consumeBody(fetch, data, n);
+        fetch.remaining -= n;
+        if (fetch.remaining == 0) {
+          if (fetch.state == State.BODY)
+            finish(fetch, true);
+          else
+            fetch.state = State.CHUNK_END;
+        }
+        break;
+      }
+      case BODY_TO_EOF:
+        consumeBody(fetch, data, data.remaining());
+        break;
+      case CHUNK_SIZE:
+        if (readLine(fetch, data)) {
+          String size = fetch.line.toString();
+          int semicolon = size.indexOf(';'); // chunk extensions are ignored
+          if (semicolon >= 0)
+            size = size.substring(0, semicolon);
+          fetch.remaining = Long.parseLong(size.trim(), 16);
+          fetch.state = fetch.remaining == 0 ? State.TRAILER
+              : State.CHUNK_DATA;
+        }
+        break;
+      case CHUNK_END:
+        if (readLine(fetch, data))
+          fetch.state = State.CHUNK_SIZE;
+        break;
+      case TRAILER:
+        if (readLine(fetch, data) && fetch.line.length() == 0)
+          finish(fetch, true);
+        break;
+      default:
+        throw new IllegalStateException("unexpected data in " + fetch.state);
+      }
+    }
+  }
+
+  /**
+   * Accumulate the bytes of a line, possibly across several reads.
+   *
+   * @return <code>true</code> when the line is complete, without its line
+   *         terminator, in fetch.line
+   */
+  private static boolean readLine(Fetch fetch, ByteBuffer data) {
+    if (fetch.lineComplete) { // previous line already handled
+      fetch.line.setLength(0);
+      fetch.lineComplete = false;
+    }
+    while (data.hasRemaining()) {
+      char c = (char) (data.get() & 0xff);
+      if (c == '\n') {
+        int end = fetch.line.length();
+        if (end > 0 && fetch.line.charAt(end - 1) == '\r')
+          fetch.line.setLength(end - 1);
+        fetch.lineComplete = true;
+        return true;
+      }
+      if (fetch.line.length() >= MAX_LINE_LENGTH)
+        throw new IllegalStateException("header line too long");
+      fetch.line.append(c);
+    }
+    return false;
+  }
+
+  private static void parseHeaderLine(Fetch fetch, String line) {
+    int colon = line.indexOf(':');
+    if (colon < 0)
+      return;
+    String name = line.substring(0, colon).trim();
+    String value = line.substring(colon + 1).trim();
+    if (name.equalsIgnoreCase("Content-Length"))
+      fetch.contentLength = Long.parseLong(value);
+    else if (name.equalsIgnoreCase("Transfer-Encoding"))
+      fetch.chunked = value.toLowerCase().contains("chunked");
+    else if (name.equalsIgnoreCase("Location"))
+      fetch.location = value;
+  }
+
+  private void endOfHeader(Fetch fetch) throws IOException {
+    if ((fetch.status == 301 || fetch.status == 302) && fetch.location != null) {
+      String location = fetch.location;
+      if (!location.startsWith("http://") || !MyURL.isValid(location))
+        System.err.println("unsupported redirection to " + location + " for "
+            + fetch.requestedURL);
+      else if (Xurl.redirects.record(fetch.requestedURL, location,
+          fetch.status == 301) > RedirectTable.MAX_HOPS
+          || fetch.redirects >= MAX_REDIRECTS)
+        System.err.println("too many redirects for " + fetch.requestedURL);
+      else if (Xurl.redirectHandler != null) // deduplicated like the links
+        Xurl.redirectHandler.takeUrl(location);
+      else
+        submit(new Fetch(location, fetch.redirects + 1));
+      finish(fetch, true);
+      return;
+    }
+    if (fetch.status != 200) {
+      System.err.println(
+          "wrong status " + fetch.status + " for " + fetch.requestedURL);
+      finish(fetch, false);
+      return;
+    }
+    fetch.file = FileChannel.open(Paths.get(fetch.fileName),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    if (fetch.chunked) {
+      fetch.state = State.CHUNK_SIZE;
+    } else if (fetch.contentLength >= 0) {
+      fetch.remaining = fetch.contentLength;
+      fetch.state = State.BODY;
+      if (fetch.remaining == 0)
+        finish(fetch, true);
+    } else {
+      fetch.state = State.BODY_TO_EOF;
+    }
+  }
+
+  /**
+   * Store the next n bytes of the body and look for links in them, a link
+   * possibly being split between two reads.
+   */
+  private void consumeBody(Fetch fetch, ByteBuffer data, int n)
+      throws IOException {
+    ByteBuffer slice = data.duplicate();
+    slice.limit(slice.position() + n);
+    while (slice.hasRemaining())
+      fetch.file.write(slice);
+    fetch.extractor.push(data.array(), data.arrayOffset() + data.position(), n);
+    data.position(data.position() + n);
+  }
+
+  /**
+   * Abort the fetches which exceed the limits of Xurl.limits: no progress for
+   * too long while connecting or receiving, past their deadline, or with a
+   * throughput too low once the grace period has elapsed.
+   */
+  private void expire() {
+    FetchLimits limits = Xurl.limits;
+    long now = System.currentTimeMillis();
+    for (Fetch fetch : new ArrayDeque<Fetch>(active)) {
+      long idle = now - fetch.lastProgress;
+      long receiving = now - fetch.firstByte;
+      FetchLimits.Limit limit = null;
+      if (limits.deadline > 0 && now - fetch.started > limits.deadline)
+        limit = FetchLimits.Limit.DEADLINE;
+      else if (fetch.state == State.CONNECTING)
+        limit = idle > limits.connectTimeout ? FetchLimits.Limit.CONNECT : null;
+      else if (limits.readTimeout > 0 && idle > limits.readTimeout)
+        limit = FetchLimits.Limit.READ;
+      else if (limits.minThroughput > 0 && fetch.received > 0
+          && receiving > FetchLimits.GRACE
+          && fetch.received * 1000 / receiving < limits.minThroughput)
+        limit = FetchLimits.Limit.THROUGHPUT;
+      if (limit != null) {
+        limits.aborted(limit);
+        fail(fetch, limit.name().toLowerCase() + " limit exceeded");
+      }
+    }
+  }
+
+  private void fail(Fetch fetch, String reason) {
+    System.err.println(reason + " for " + fetch.requestedURL);
+    finish(fetch, false);
+  }
+
+  private void finish(Fetch fetch, boolean success) {
+    fetch.state = State.DONE;
+    try {
+      if (fetch.file != null)
+        fetch.file.close();
+      if (fetch.channel != null)
+        fetch.channel.close(); // also cancels its key
+    } catch (IOException e) {
+      System.err.println(e);
+    }
+    active.remove(fetch);
+    (success ? fetched : failed).incrementAndGet();
+    lock.lock();
+    try {
+      if (--outstanding == 0)
+        idle.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "fetches: done=" + fetched.get() + " failed=" + failed.get();
+  }
+}
@@ -0,0 +1,142 @@
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Frontier giving the URLs in the order of a score, the lowest first. The
+ * score of an URL depends on its depth, the number of links followed from the
+ * seed, which is given with it; the bounds of the crawl are kept by a
+ * {@link CrawlBudget} before the URLs are enqueued.
+ */
+public class PriorityURLQueue implements URLQueue {
+
+  /**
+   * The priority of an URL, the lowest being given first; URLs of the same
+   * score are given in the order they were enqueued.
+   */
+  public interface Scorer {
+    /**
+     * @param url
+     *          the URL
+     * @param depth
+     *          its depth, 0 for the seed
+     * @param hostPages
+     *          the URLs of its host accepted before it
+     */
+    long score(String url, int depth, int hostPages);
+  }
+
+  /** Breadth-first: the shallowest URLs first. */
+  public static final Scorer BY_DEPTH = (url, depth, hostPages) -> depth;
+
+  /** The URLs of the hosts least crawled first, then by depth. */
+  public static final Scorer BY_HOST_DIVERSITY = (url, depth,
+      hostPages) -> ((long) hostPages << 32) + depth;
+
+  private static class Entry implements Comparable<Entry> {
+    final String url;
+    final long score;
+    final long order;
+
+    Entry(String url, long score, long order) {
+      this.url = url;
+      this.score = score;
+      this.order = order;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      int c = Long.compare(score, other.score);
+      return c != 0 ? c : Long.compare(order, other.order);
+    }
+  }
+
+  private final Scorer scorer;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  // guarded by lock
+  private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+  private final HashMap<String, Integer> hostPages = new HashMap<String, Integer>();
+  private long accepted = 0;
+
+  public PriorityURLQueue() {
+    this(BY_DEPTH);
+  }
+
+  /**
+   * @param scorer
+   *          the priority of the URLs
+   */
+  public PriorityURLQueue(Scorer scorer) {
+    this.scorer = scorer;
+  }
+
+  public boolean isEmpty() {
+    lock.lock();
+    try {
+      return queue.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isFull() {
+    return false;
+  }
+
+  /**
+   * Add an URL of unknown depth, as the seed.
+   */
+  public void enqueue(String url) {
+    offer(url, 0);
+  }
+
+  /**
+   * Add an URL of a given depth.
+   */
+  public void offer(String url, int depth) {
+    lock.lock();
+    try {
+      String host = HostFrontier.hostOf(url);
+      int pages = hostPages.getOrDefault(host, 0);
+      hostPages.put(host, pages + 1);
+      queue.add(new Entry(url, scorer.score(url, depth, pages),
+          accepted++));
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Remove the URL of the lowest score, waiting for one when the queue is
+   * empty.
+   *
+   * @return the URL, or an empty string when interrupted while waiting
+   */
+  public String dequeue() {
+    lock.lock();
+    try {
+      while (queue.isEmpty())
+        notEmpty.await();
+      return queue.poll().url;
+    } catch (InterruptedException e) {
+      return "";
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return "frontier: queued=" + queue.size() + " accepted=" + accepted
+          + " hosts=" + hostPages.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
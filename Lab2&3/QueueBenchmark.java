@@ -0,0 +1,128 @@
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+/**
+ * Compare the URLQueue implementations: alone in one thread, by batches small
+ * enough for the bounded ones, then shared by producer and consumer threads
+ * handing over URLs. The unsynchronized {@link ListQueue} only takes part in
+ * the first one, and consumers of {@link SynchronizedListQueue}, which doesn't
+ * wait, spin on it.
+ *
+ * Usage: java QueueBenchmark [producers consumers [urls]]
+ */
+public class QueueBenchmark {
+
+  private static final int WARMUP = 3;
+  private static final int ROUNDS = 5;
+  private static final int BATCH = 16; // the size of BlockingListQueue
+
+  private static final String[] URLS = new String[4096];
+  static {
+    for (int i = 0; i < URLS.length; i++)
+      URLS[i] = "http://www.example.org/page" + i + ".html";
+  }
+
+  private static long checksum = 0;
+
+  private static long alone(URLQueue queue, int count) {
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i += BATCH) {
+      for (int j = 0; j < BATCH; j++)
+        queue.enqueue(URLS[(i + j) & (URLS.length - 1)]);
+      for (int j = 0; j < BATCH; j++)
+        checksum += queue.dequeue().length();
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Remove an URL from a queue which may not wait when empty.
+   */
+  private static String take(URLQueue queue, boolean spin) {
+    if (!spin)
+      return queue.dequeue();
+    while (true) {
+      try {
+        if (!queue.isEmpty())
+          return queue.dequeue();
+      } catch (NoSuchElementException e) {
+        // taken by another consumer meanwhile
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  private static long shared(URLQueue queue, boolean spin, int producers,
+      int consumers, int count) throws InterruptedException {
+    int share = count / producers / consumers * consumers; // per producer
+    int quota = share * producers / consumers; // per consumer
+    Thread[] threads = new Thread[producers + consumers];
+    long[] sums = new long[consumers];
+    for (int p = 0; p < producers; p++) {
+      final int first = p * share;
+      threads[p] = new Thread(() -> {
+        for (int i = 0; i < share; i++)
+          queue.enqueue(URLS[(first + i) & (URLS.length - 1)]);
+      });
+    }
+    for (int c = 0; c < consumers; c++) {
+      final int index = c;
+      threads[producers + c] = new Thread(() -> {
+        long sum = 0;
+        for (int i = 0; i < quota; i++)
+          sum += take(queue, spin).length();
+        sums[index] = sum;
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+    long elapsed = System.nanoTime() - start;
+    for (long sum : sums)
+      checksum += sum;
+    return elapsed;
+  }
+
+  private static void measure(String name, Supplier<URLQueue> queues,
+      boolean threadSafe, boolean spin, int producers, int consumers,
+      int count) throws InterruptedException {
+    long alone = 0, shared = 0;
+    for (int round = 0; round < WARMUP + ROUNDS; round++) {
+      long a = alone(queues.get(), count);
+      long s = threadSafe ? shared(queues.get(), spin, producers, consumers,
+          count) : 0;
+      if (round >= WARMUP) {
+        alone += a;
+        shared += s;
+      }
+    }
+    System.out.printf("%-14s %8.1f ns/url alone", name,
+        (double) alone / ROUNDS / count);
+    if (threadSafe)
+      System.out.printf(" %8.1f ns/url shared", (double) shared / ROUNDS
+          / count);
+    System.out.println();
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int producers = args.length > 1 ? Integer.parseInt(args[0]) : 4;
+    int consumers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int count = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+    System.out.println(count + " urls, " + producers + " producers, "
+        + consumers + " consumers, " + Runtime.getRuntime().availableProcessors()
+        + " processors");
+    measure("list", ListQueue::new, false, false, producers, consumers, count);
+    measure("synchronized", SynchronizedListQueue::new, true, true, producers,
+        consumers, count);
+    measure("blocking", BlockingListQueue::new, true, false, producers,
+        consumers, count);
+    measure("ring(16)", () -> new RingQueue(BATCH), true, false, producers,
+        consumers, count);
+    measure("ring(1024)", RingQueue::new, true, false, producers, consumers,
+        count);
+    if (checksum == 42)
+      System.out.println(); // keeps the results alive
+  }
+}
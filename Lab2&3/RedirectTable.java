@@ -0,0 +1,138 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memo of the redirections answered by servers, so that URLs known to be
+ * redirected are rewritten to their target before being queried. Permanent
+ * redirections (301) are kept long, temporary ones (302) only briefly. The
+ * table is bounded: past its capacity, the expired redirections are forgotten,
+ * then arbitrary ones, down to 3/4 of it.
+ *
+ * Every link found is resolved, hence the table is read without lock, and
+ * not at all while it is empty.
+ *
+ * It also counts how many redirections lead to each target, so that chains
+ * and loops of redirections are cut after MAX_HOPS.
+ */
+public class RedirectTable {
+
+  public static final int DEFAULT_CAPACITY = 16384;
+  public static final long PERMANENT_TTL = 24 * 3600 * 1000; // milliseconds
+  public static final long TEMPORARY_TTL = 60000; // milliseconds
+  public static final int MAX_HOPS = 5;
+
+  private static class Redirect {
+    final String target;
+    final long expires;
+    final int hops; // redirections leading to the target
+
+    Redirect(String target, long expires, int hops) {
+      this.target = target;
+      this.expires = expires;
+      this.hops = hops;
+    }
+  }
+
+  private final int capacity;
+  private final ConcurrentHashMap<String, Redirect> redirects = new ConcurrentHashMap<String, Redirect>();
+  // the latest redirection to each target
+  private final ConcurrentHashMap<String, Redirect> arrivals = new ConcurrentHashMap<String, Redirect>();
+
+  private final AtomicLong recorded = new AtomicLong(0);
+  private final AtomicLong rewritten = new AtomicLong(0);
+  private final AtomicLong cut = new AtomicLong(0);
+
+  public RedirectTable() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity
+   *          the number of redirections above which some are forgotten
+   */
+  public RedirectTable(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Record a redirection answered by a server.
+   *
+   * @param from
+   *          the requested (absolute) URL in raw form
+   * @param to
+   *          the Location given by the server
+   * @param permanent
+   *          true for a 301 answer, false for a 302
+   * @return the number of redirections which led to the target, as far as
+   *         they are known; more than MAX_HOPS when it is not to be followed
+   */
+  public int record(String from, String to, boolean permanent) {
+    long now = System.currentTimeMillis();
+    long expires = now + (permanent ? PERMANENT_TTL : TEMPORARY_TTL);
+    Redirect before = arrivals.get(from);
+    int hops = before != null && now < before.expires ? before.hops + 1 : 1;
+    Redirect redirect = new Redirect(to, expires, hops);
+    redirects.put(from, redirect);
+    arrivals.put(to, redirect);
+    if (redirects.size() > capacity)
+      evict(redirects, now);
+    if (arrivals.size() > capacity)
+      evict(arrivals, now);
+    recorded.incrementAndGet();
+    if (hops > MAX_HOPS)
+      cut.incrementAndGet();
+    return hops;
+  }
+
+  /**
+   * Forget the expired redirections of a map, then arbitrary ones until it is
+   * down to 3/4 of the capacity. Threads evicting together only forget a few
+   * more.
+   */
+  private void evict(ConcurrentHashMap<String, Redirect> map, long now) {
+    map.values().removeIf(redirect -> now >= redirect.expires);
+    Iterator<String> keys = map.keySet().iterator();
+    while (map.size() > capacity / 4 * 3 && keys.hasNext()) {
+      keys.next();
+      keys.remove();
+    }
+  }
+
+  /**
+   * Rewrite an URL to the final target of the redirections known for it.
+   *
+   * @param url
+   *          an absolute URL in raw form
+   * @return the URL itself when it is not known to be redirected, its target
+   *         otherwise, or null when the redirections loop or go on for more
+   *         than MAX_HOPS
+   */
+  public String resolve(String url) {
+    if (redirects.isEmpty()) // no redirection met yet
+      return url;
+    long now = System.currentTimeMillis();
+    String target = url;
+    for (int hops = 0; hops <= MAX_HOPS; hops++) {
+      Redirect redirect = redirects.get(target);
+      if (redirect != null && now >= redirect.expires) {
+        redirects.remove(target, redirect);
+        redirect = null;
+      }
+      if (redirect == null) {
+        if (hops > 0)
+          rewritten.incrementAndGet();
+        return target;
+      }
+      target = redirect.target;
+    }
+    cut.incrementAndGet();
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "redirects: recorded=" + recorded.get() + " rewritten="
+        + rewritten.get() + " cut=" + cut.get();
+  }
+}
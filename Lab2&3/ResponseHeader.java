@@ -0,0 +1,129 @@
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The fields of an HTTP answer header which Xurl cares about, as parsed by
+ * {@link HttpInput#readHeader}.
+ */
+public class ResponseHeader {
+
+  /** status code of the answer */
+  public int status;
+  /** Content-Length, or Xurl.CHUNKED, or Xurl.UNSPECIFIED */
+  public long length = Xurl.UNSPECIFIED;
+  public String contentType;
+  /** Content-Encoding in lower case, e.g. gzip or deflate */
+  public String contentEncoding;
+  /** Location of a redirection */
+  public String location;
+  /** set by 'Accept-Ranges: bytes' */
+  public boolean acceptRanges;
+  /** Content-Range of a 206 answer: first and last bytes, and full length */
+  public long rangeFirst = -1;
+  public long rangeLast = -1;
+  public long rangeTotal = -1;
+  /** set by 'Connection: close', or for an HTTP/1.0 answer */
+  public boolean close;
+  // validators and freshness, for the cache
+  public String etag;
+  public String lastModified;
+  /** Cache-Control max-age in seconds, 0 for no-cache, -1 when not given */
+  public long maxAge = -1;
+  /** set by Cache-Control no-store */
+  public boolean noStore;
+
+  /**
+   * Record the directives of a Cache-Control header line.
+   *
+   * @param value
+   *          the value of the header line
+   */
+  public void parseCacheControl(String value) {
+    for (String directive : value.split(",")) {
+      directive = directive.trim().toLowerCase();
+      if (directive.startsWith("max-age=")) {
+        try {
+          maxAge = Long.parseLong(directive.substring(8));
+        } catch (NumberFormatException e) {
+          maxAge = 0;
+        }
+      } else if (directive.equals("no-cache")) {
+        maxAge = 0;
+      } else if (directive.equals("no-store")) {
+        noStore = true;
+      }
+    }
+  }
+
+  /**
+   * Record the value of a Content-Range header line, e.g. "bytes 0-99/1000".
+   * A total given as "*" is recorded as -1.
+   *
+   * @param value
+   *          the value of the header line
+   */
+  public void parseContentRange(String value) {
+    value = value.trim();
+    if (!value.regionMatches(true, 0, "bytes ", 0, 6))
+      return;
+    int dash = value.indexOf('-', 6);
+    int slash = value.indexOf('/', 6);
+    if (dash < 0 || slash < dash)
+      return;
+    try {
+      rangeFirst = Long.parseLong(value.substring(6, dash).trim());
+      rangeLast = Long.parseLong(value.substring(dash + 1, slash).trim());
+      String total = value.substring(slash + 1).trim();
+      rangeTotal = "*".equals(total) ? -1 : Long.parseLong(total);
+    } catch (NumberFormatException e) {
+      rangeFirst = rangeLast = rangeTotal = -1;
+    }
+  }
+
+  /**
+   * Give the validator to be sent in an If-Range request line: the ETag when
+   * it is strong, Last-Modified otherwise.
+   *
+   * @return the validator, or null when there is none
+   */
+  public String rangeValidator() {
+    if (etag != null && !etag.startsWith("W/"))
+      return etag;
+    return lastModified;
+  }
+
+  /**
+   * Tell whether the document is text in which links are to be looked for. A
+   * missing Content-Type is taken as text.
+   *
+   * @return <code>true</code> for text and (X)HTML documents
+   */
+  public boolean isText() {
+    if (contentType == null)
+      return true;
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/") || type.contains("html")
+        || type.contains("xml");
+  }
+
+  /**
+   * Give the charset announced by the Content-Type, ISO-8859-1 otherwise.
+   *
+   * @return the charset of a text document
+   */
+  public Charset charset() {
+    if (contentType != null) {
+      for (String parameter : contentType.split(";")) {
+        parameter = parameter.trim();
+        if (parameter.regionMatches(true, 0, "charset=", 0, 8)) {
+          try {
+            return Charset.forName(parameter.substring(8).replace("\"", ""));
+          } catch (IllegalArgumentException e) {
+            break; // unknown or illegal, fall back on the default
+          }
+        }
+      }
+    }
+    return StandardCharsets.ISO_8859_1;
+  }
+}
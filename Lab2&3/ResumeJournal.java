@@ -0,0 +1,127 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Journal of a download in progress, kept next to the file being written as
+ * "name.resume". It records the URL, the validator of the document and how
+ * many bytes have been safely written, so that a download which fails partway
+ * is resumed with a Range request instead of starting over.
+ */
+public class ResumeJournal {
+
+  /** how many bytes are received between two updates of the journal */
+  public static final long CHECKPOINT = 256 << 10;
+
+  private static final String SUFFIX = ".resume";
+
+  private final Path path;
+  final String url;
+  final String validator;
+  /** bytes written to the file, and recorded in the journal */
+  long received;
+
+  private ResumeJournal(Path path, String url, String validator,
+      long received) {
+    this.path = path;
+    this.url = url;
+    this.validator = validator;
+    this.received = received;
+  }
+
+  /**
+   * Prepare the journal of a download starting from the first byte. Nothing is
+   * written until the first checkpoint.
+   *
+   * @param fileName
+   *          the name of the file being downloaded
+   * @param url
+   *          the (absolute) URL of the document in raw form
+   * @param validator
+   *          the ETag or Last-Modified of the document, to be sent in If-Range
+   */
+  public static ResumeJournal start(String fileName, String url,
+      String validator) {
+    return new ResumeJournal(Paths.get(fileName + SUFFIX), url, validator, 0);
+  }
+
+  /**
+   * Find the journal of an interrupted download of an URL into a file.
+   *
+   * @param fileName
+   *          the name of the file being downloaded
+   * @param url
+   *          the (absolute) URL of the document in raw form
+   * @return the journal, or null when there is nothing to resume, e.g. when
+   *         the file has been truncated or downloaded from another URL
+   */
+  public static ResumeJournal load(String fileName, String url) {
+    Path path = Paths.get(fileName + SUFFIX);
+    if (!Files.exists(path))
+      return null;
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+      String journaled = in.readUTF();
+      String validator = in.readUTF();
+      long received = in.readLong();
+      if (!journaled.equals(url) || received <= 0
+          || Files.size(Paths.get(fileName)) < received)
+        return null;
+      return new ResumeJournal(path, journaled, validator, received);
+    } catch (IOException e) {
+      return null; // unreadable, start over
+    }
+  }
+
+  /**
+   * Tell whether the journal is to be updated, the number of bytes written
+   * having grown by at least CHECKPOINT since it was last recorded.
+   *
+   * @param written
+   *          the number of bytes written to the file
+   */
+  public boolean isDue(long written) {
+    return written - received >= CHECKPOINT;
+  }
+
+  /**
+   * Record the number of bytes written so far, replacing the journal
+   * atomically.
+   *
+   * @param written
+   *          the number of bytes written to the file, and on disk
+   */
+  public void save(long written) {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        Files.newOutputStream(temp))) {
+      out.writeUTF(url);
+      out.writeUTF(validator);
+      out.writeLong(written);
+    } catch (IOException e) {
+      System.err.println(e);
+      return;
+    }
+    try {
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      received = written;
+    } catch (IOException e) {
+      System.err.println(e);
+    }
+  }
+
+  /**
+   * Drop the journal, once the download is complete or can't be resumed.
+   */
+  public void delete() {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      System.err.println(e);
+    }
+  }
+}
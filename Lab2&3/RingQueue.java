@@ -0,0 +1,194 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for many producers and many consumers: an array of
+ * slots used as a ring, each with a sequence number telling whether it may be
+ * written or read for the current turn. Producers and consumers claim a slot
+ * by a CAS on the tail or the head counter, which are kept on separate cache
+ * lines, and never contend on a lock.
+ *
+ * Like {@link BlockingListQueue}, adding to a full queue and removing from an
+ * empty one wait: first by spinning a little, then by parking until woken by
+ * the other side, which only looks for parked threads after its operation.
+ * The thread woken may be one which was registered but succeeded meanwhile;
+ * such a thread passes the wakeup on to the next one while there is still
+ * room, or URLs, so that none is lost.
+ */
+public class RingQueue implements URLQueue {
+
+  public static final int DEFAULT_CAPACITY = 1024;
+  private static final int SPINS = 128;
+
+  private static final VarHandle LONGS = MethodHandles
+      .arrayElementVarHandle(long[].class);
+  // counters 128 bytes apart, and away from the array header and neighbours
+  private static final int PAD = 16;
+  private static final int TAIL = PAD;
+  private static final int HEAD = 2 * PAD;
+
+  private final int mask;
+  private final String[] slots;
+  // a slot may be written at turn t when its sequence is t, read when t + 1
+  private final long[] sequences;
+  private final long[] counters = new long[3 * PAD];
+
+  private final ConcurrentLinkedQueue<Thread> consumers = new ConcurrentLinkedQueue<Thread>();
+  private final ConcurrentLinkedQueue<Thread> producers = new ConcurrentLinkedQueue<Thread>();
+
+  public RingQueue() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity
+   *          the maximum number of URLs in the queue, rounded up to a power
+   *          of two
+   */
+  public RingQueue(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.mask = size - 1;
+    this.slots = new String[size];
+    this.sequences = new long[size];
+    for (int i = 0; i < size; i++)
+      sequences[i] = i;
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  private long counter(int index) {
+    return (long) LONGS.getVolatile(counters, index);
+  }
+
+  public boolean isEmpty() {
+    return counter(TAIL) - counter(HEAD) <= 0;
+  }
+
+  public boolean isFull() {
+    return counter(TAIL) - counter(HEAD) > mask;
+  }
+
+  /**
+   * Add an URL unless the queue is full, without waiting.
+   *
+   * @return <code>false</code> when the queue is full
+   */
+  public boolean offer(String url) {
+    long tail = counter(TAIL);
+    while (true) {
+      int i = (int) tail & mask;
+      long turn = (long) LONGS.getAcquire(sequences, i) - tail;
+      if (turn == 0) {
+        if (LONGS.compareAndSet(counters, TAIL, tail, tail + 1)) {
+          slots[i] = url;
+          LONGS.setVolatile(sequences, i, tail + 1);
+          wake(consumers);
+          return true;
+        }
+      } else if (turn < 0) {
+        return false; // not read yet since the previous turn
+      }
+      tail = counter(TAIL);
+    }
+  }
+
+  /**
+   * Remove the head URL unless the queue is empty, without waiting.
+   *
+   * @return the URL, or null when the queue is empty
+   */
+  public String poll() {
+    long head = counter(HEAD);
+    while (true) {
+      int i = (int) head & mask;
+      long turn = (long) LONGS.getAcquire(sequences, i) - (head + 1);
+      if (turn == 0) {
+        if (LONGS.compareAndSet(counters, HEAD, head, head + 1)) {
+          String url = slots[i];
+          slots[i] = null;
+          LONGS.setVolatile(sequences, i, head + mask + 1);
+          wake(producers);
+          return url;
+        }
+      } else if (turn < 0) {
+        return null; // not written yet in this turn
+      }
+      head = counter(HEAD);
+    }
+  }
+
+  private static void wake(ConcurrentLinkedQueue<Thread> waiters) {
+    if (!waiters.isEmpty()) {
+      Thread waiter = waiters.poll();
+      if (waiter != null)
+        LockSupport.unpark(waiter);
+    }
+  }
+
+  /**
+   * Add an URL at the end of the queue, waiting while it is full. The URL is
+   * dropped when the thread is interrupted while waiting.
+   */
+  public void enqueue(String url) {
+    for (int spins = 0; spins < SPINS; spins++) {
+      if (offer(url))
+        return;
+      Thread.onSpinWait();
+    }
+    Thread current = Thread.currentThread();
+    while (!current.isInterrupted()) {
+      // registered before trying again: a consumer either frees the slot
+      // before this try, or finds this thread to wake afterwards
+      producers.add(current);
+      if (offer(url)) {
+        producers.remove(current);
+        if (!isFull()) // the wakeup of a consumer may have come to this one
+          wake(producers);
+        return;
+      }
+      LockSupport.park(this);
+      producers.remove(current);
+    }
+    if (!isFull()) // interrupted, not taking the room it may have been woken for
+      wake(producers);
+  }
+
+  /**
+   * Remove the head URL, waiting while the queue is empty.
+   *
+   * @return the URL, or an empty string when interrupted while waiting
+   */
+  public String dequeue() {
+    String url;
+    for (int spins = 0; spins < SPINS; spins++) {
+      if ((url = poll()) != null)
+        return url;
+      Thread.onSpinWait();
+    }
+    Thread current = Thread.currentThread();
+    while (!current.isInterrupted()) {
+      consumers.add(current);
+      if ((url = poll()) != null) {
+        consumers.remove(current);
+        if (!isEmpty()) // the wakeup of a producer may have come to this one
+          wake(consumers);
+        return url;
+      }
+      LockSupport.park(this);
+      consumers.remove(current);
+    }
+    if (!isEmpty()) // interrupted, not taking the URL it may have been woken for
+      wake(consumers);
+    return "";
+  }
+
+  @Override
+  public String toString() {
+    return "ring: queued=" + (counter(TAIL) - counter(HEAD)) + " capacity="
+        + capacity();
+  }
+}
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unbounded queue keeping only its head and its tail in memory. When the tail
+ * grows too long, it is appended to segment files mapped in memory, which are
+ * read back in order when the head runs out, and deleted once consumed. The
+ * heap only holds up to HEAD_SIZE + TAIL_SIZE URLs, whatever the length of the
+ * queue.
+ *
+ * The segment files are given names of their own, so that a directory may be
+ * shared by several queues, or still hold the segments of a crawl killed
+ * before deleting them.
+ *
+ * Like {@link BlockingListQueue}, removing from an empty queue waits for an
+ * URL to be added.
+ */
+public class SpillingQueue implements URLQueue {
+
+  public static final int HEAD_SIZE = 1024;
+  public static final int TAIL_SIZE = 1024;
+  public static final int SEGMENT_SIZE = 4 << 20; // bytes
+
+  /**
+   * A segment file: records made of a 2-byte length followed by the URL in
+   * UTF-8, appended up to the end of the file, then read in the same order.
+   */
+  private static class Segment {
+    final Path path;
+    final MappedByteBuffer data;
+    int written = 0;
+    int read = 0;
+    boolean sealed = false; // nothing more is appended
+
+    /**
+     * @param directory
+     *          where a new file is created for the segment
+     */
+    Segment(Path directory) throws IOException {
+      this.path = Files.createTempFile(directory, "frontier-", ".seg");
+      try (FileChannel channel = FileChannel.open(path,
+          StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        // the mapping stays valid once the channel is closed
+        this.data = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+            SEGMENT_SIZE);
+      }
+    }
+
+    boolean append(byte[] url) {
+      if (written + 2 + url.length > SEGMENT_SIZE)
+        return false;
+      data.putShort(written, (short) url.length);
+      data.put(written + 2, url);
+      written += 2 + url.length;
+      return true;
+    }
+
+    String next() {
+      int length = data.getShort(read) & 0xffff;
+      byte[] url = new byte[length];
+      data.get(read + 2, url);
+      read += 2 + length;
+      return new String(url, StandardCharsets.UTF_8);
+    }
+  }
+
+  private final Path directory;
+  private final ArrayDeque<String> head = new ArrayDeque<String>();
+  private final ArrayDeque<String> tail = new ArrayDeque<String>();
+  // the URLs between head and tail, oldest segment first
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  private long size = 0; // guarded by lock
+  private long spilled = 0; // URLs written to segments
+  private int created = 0; // segment files
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+
+  /**
+   * @param directory
+   *          where the segment files are created, and deleted
+   * @throws IOException
+   *           when the directory can't be created
+   */
+  public SpillingQueue(Path directory) throws IOException {
+    this.directory = Files.createDirectories(directory);
+  }
+
+  public boolean isEmpty() {
+    lock.lock();
+    try {
+      return size == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isFull() {
+    return false;
+  }
+
+  /**
+   * Add an URL at the end of the queue, which never blocks.
+   *
+   * @throws UncheckedIOException
+   *           when a segment file can't be created
+   */
+  public void enqueue(String url) {
+    lock.lock();
+    try {
+      if (segments.isEmpty() && tail.isEmpty() && head.size() < HEAD_SIZE)
+        head.add(url); // nothing in between, keep it in memory
+      else {
+        tail.add(url);
+        if (tail.size() >= TAIL_SIZE)
+          spill();
+      }
+      if (size++ == 0)
+        notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Append the tail to the segments.
+   */
+  private void spill() {
+    try {
+      Segment last = segments.peekLast();
+      String url;
+      while ((url = tail.poll()) != null) {
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff)
+          throw new IllegalArgumentException("URL too long: " + url);
+        while (last == null || last.sealed || !last.append(bytes)) {
+          if (last != null)
+            last.sealed = true;
+          last = new Segment(directory);
+          created++;
+          segments.add(last);
+        }
+        spilled++;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Remove the URL at the head of the queue, waiting for one when it is
+   * empty.
+   *
+   * @return the URL, or an empty string when interrupted while waiting
+   */
+  public String dequeue() {
+    lock.lock();
+    try {
+      while (size == 0)
+        notEmpty.await();
+      if (head.isEmpty())
+        refill();
+      size--;
+      return head.poll();
+    } catch (InterruptedException e) {
+      return "";
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Read the next URLs into the head, from the segments if any, from the tail
+   * otherwise.
+   */
+  private void refill() {
+    Segment first;
+    while (head.size() < HEAD_SIZE && (first = segments.peek()) != null) {
+      if (first.read < first.written) {
+        head.add(first.next());
+      } else if (first.sealed) {
+        segments.poll(); // consumed
+        delete(first);
+      } else {
+        break; // the segment being appended to, read up to its end
+      }
+    }
+    first = segments.peek();
+    if (first == null || first.read == first.written) // all the spilled is read
+      while (head.size() < HEAD_SIZE && !tail.isEmpty())
+        head.add(tail.poll());
+  }
+
+  private static void delete(Segment segment) {
+    try {
+      Files.deleteIfExists(segment.path);
+    } catch (IOException e) {
+      System.err.println(e);
+    }
+  }
+
+  /**
+   * Delete the segment files left, the URLs they hold being lost.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      for (Segment segment : segments)
+        delete(segment);
+      segments.clear();
+      head.clear();
+      tail.clear();
+      size = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return "frontier: queued=" + size + " spilled=" + spilled + " segments="
+          + created + " (" + segments.size() + " left)";
+    } finally {
+      lock.unlock();
+    }
+  }
+}
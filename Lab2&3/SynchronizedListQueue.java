@@ -16,7 +16,7 @@ public class SynchronizedListQueue implements URLQueue {
     queue = new LinkedList<String>();
   }
 
-  public boolean isEmpty() {
+  public synchronized boolean isEmpty() {
     return queue.size() == 0;
   }
 
@@ -1,6 +1,3 @@
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 public class URLprocessing {
 
   public interface URLhandler {
@@ -13,34 +10,40 @@ public class URLprocessing {
     }
   };
 
+  private static final String HTTP = "http://";
+
   /**
    * Parse the given buffer to fetch embedded links and call the handler to
-   * process these links.
+   * process these links. The buffer must hold a whole document; use a
+   * {@link LinkExtractor} to parse a document slice by slice.
    * 
    * @param data
    *          the buffer containing the http document
    */
   public static void parseDocument(CharSequence data) {
-	  /* Parse the document and find all valid urls */
-	  
-	  // Convert data to strings and isolate potential urls
-	  String line = data.toString().replaceAll(">",">\n");
-      String regex = "<[a|A].*[h|H][r|R][e|E][f|F]\\s*=\\s*(\"(.*)\"|\'(.*)\').*>";
-      Pattern pattern = Pattern.compile(regex);
-      Matcher matcher = pattern.matcher(line);
+    HrefScanner.scan(data, 0, data.length(), URLprocessing::report);
+  }
 
-      // Iterate over all findings
-      while (matcher.find()) {
-          String url = matcher.group(1).replaceAll("\'","").replaceAll("\"","");
-          try {
-              new MyURL(url);
-          } catch (IllegalArgumentException e) {
-              continue;
-          }
-          if (url.contains("http://")) {
-        	  handler.takeUrl(url);
-          }
-      }
+  /**
+   * Call the handler with a link found by the scanner, when it is a valid
+   * http URL. Nothing is allocated for the other links.
+   * 
+   * @param input
+   *          the characters holding the link
+   * @param start
+   *          the offset of the link
+   * @param end
+   *          the offset following the link
+   */
+  static void report(CharSequence input, int start, int end) {
+    if (end - start <= HTTP.length())
+      return;
+    for (int i = 0; i < HTTP.length(); i++)
+      if (input.charAt(start + i) != HTTP.charAt(i))
+        return;
+    String url = input.subSequence(start, end).toString();
+    if (MyURL.isValid(url))
+      handler.takeUrl(url);
   }
 
   public static void main(String[] args) {
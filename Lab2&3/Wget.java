@@ -1,8 +1,15 @@
-import java.util.HashSet;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjIntConsumer;
 
 // The Worker implementing Runnable
 class Blade implements Runnable{
@@ -10,140 +17,575 @@ class Blade implements Runnable{
 	String url;
 	String proxyHost;
 	int proxyPort;
+	CrawlTracker tracker;
 
-	Blade(String url, String proxyHost, int proxyPort){
+	Blade(String url, String proxyHost, int proxyPort, CrawlTracker tracker){
 		this.url = url;
 		this.proxyHost = proxyHost;
 		this.proxyPort = proxyPort;
+		this.tracker = tracker;
 	}
 
 	@Override
 	public void run() {
-		Xurl.query(url, proxyHost, proxyPort);
-		System.out.println(Thread.currentThread() + " was here.");
+		try {
+			Wget.fetch(url, proxyHost, proxyPort);
+			System.out.println(Thread.currentThread() + " was here.");
+		} finally {
+			tracker.finished(); // after the URLs found are enqueued
+		}
 	}
 
 }
 
 public class Wget {
 
-	public static void doIterative(String requestedURL, String proxyHost, int proxyPort) {
-		final URLQueue queue = new ListQueue();
-		final HashSet<String> seen = new HashSet<String>();
-
-		URLprocessing.handler = new URLprocessing.URLhandler() {
-			// this method is called for each matched url
-			public void takeUrl(String url) {
-				if (!seen.contains(url)) {
-					seen.add(url);
-					queue.enqueue(url);
-				}
+	public static final int MAX_ATTEMPTS = 3;
+	public static final long RETRY_DELAY = 1000; // milliseconds, doubled after each failure
+
+	// how the seen URLs are kept, set by the options
+	static int expectedURLs = 0;
+	static boolean offHeap = false;
+	static boolean bloom = false;
+
+	// The URLs seen by a crawl, shared by its threads without lock
+	static FingerprintSet newSeenSet() {
+		int capacity = expectedURLs > 0 ? 2 * expectedURLs : FingerprintSet.DEFAULT_CAPACITY;
+		return new FingerprintSet(capacity, offHeap, bloom ? Math.max(expectedURLs, capacity / 2) : 0);
+	}
+
+	// politeness of the pool mode, set by the options
+	static int maxPerHost = HostFrontier.DEFAULT_MAX_PER_HOST;
+	static long hostDelay = HostFrontier.DEFAULT_MIN_DELAY;
+
+	// fetches at the same time in the virtual mode, set by the options, and at most when it falls
+	// back to platform threads
+	static int maxInFlight = 10000;
+	static final int MAX_PLATFORM_THREADS = 64;
+
+	// where the frontier is spilled, kept in memory when null
+	static Path queueDirectory = null;
+
+	// the order and bounds of the crawl, set by the options
+	static PriorityURLQueue.Scorer order = null;
+	static int maxDepth = CrawlBudget.UNBOUNDED;
+	static long maxPages = CrawlBudget.UNBOUNDED;
+	static int maxPagesPerHost = CrawlBudget.UNBOUNDED;
+	// the bounds of the crawl, null when unbounded
+	static CrawlBudget budget = null;
+
+	// The frontier of a crawl: an ordered one when the crawl is ordered, otherwise the given
+	// in-memory queue unless it is to be spilled to disk
+	static URLQueue newQueue(URLQueue inMemory) {
+		if (order != null)
+			return new PriorityURLQueue(order);
+		if (queueDirectory == null)
+			return inMemory;
+		try {
+			return new SpillingQueue(queueDirectory);
+		} catch (IOException e) {
+			System.err.println(e);
+			System.exit(-1);
+			return null;
+		}
+	}
+
+	static void closeQueue(URLQueue queue) {
+		if (queue instanceof SpillingQueue) {
+			System.out.println(queue);
+			((SpillingQueue) queue).close();
+		} else if (queue instanceof PriorityURLQueue) {
+			System.out.println(queue);
+		}
+	}
+
+	// the checkpoints of the crawl, set by the options
+	static CrawlJournal journal = null;
+	static boolean resume = false;
+
+	// the crawl being run, set by its mode: the URLs seen, and how the new ones are scheduled
+	static FingerprintSet seenURLs;
+	static String crawlProxyHost;
+	static ObjIntConsumer<String> scheduler;
+
+	// the depth of the URLs scheduled until fetched, and of the page each thread fetches, only kept
+	// when the crawl is ordered or bounded by depth
+	static boolean trackDepth;
+	static final ConcurrentHashMap<String, Integer> depths = new ConcurrentHashMap<String, Integer>();
+	static final ThreadLocal<Integer> pageDepth = new ThreadLocal<Integer>();
+
+	// Make the pages fetched, and the redirections, report their links to discover
+	static void crawl(FingerprintSet seen, String proxyHost, ObjIntConsumer<String> schedule) {
+		seenURLs = seen;
+		crawlProxyHost = proxyHost;
+		scheduler = schedule;
+		if (maxDepth != CrawlBudget.UNBOUNDED || maxPages != CrawlBudget.UNBOUNDED
+				|| maxPagesPerHost != CrawlBudget.UNBOUNDED)
+			budget = new CrawlBudget(maxDepth, maxPages, maxPagesPerHost);
+		trackDepth = order != null || maxDepth != CrawlBudget.UNBOUNDED;
+		// called for each matched url, from the fetching threads: the links are one level deeper
+		URLprocessing.handler = url -> discover(url, depthOfPage() + 1);
+		// redirections join the frontier, deduplicated, at the depth of the URL redirected
+		Xurl.redirectHandler = url -> discover(url, depthOfPage());
+	}
+
+	// The depth of the page fetched by the current thread
+	static int depthOfPage() {
+		Integer depth = pageDepth.get();
+		return depth != null ? depth : 0;
+	}
+
+	// Handle an URL found in a page, or the target of a redirection: the step shared by all the
+	// modes, which only differ by how they schedule the new URLs. The depth is checked before the
+	// URL is marked as seen, as it may be found again closer to the seed, and the budgets after,
+	// so that they are charged once per URL
+	static void discover(String url, int depth) {
+		url = Xurl.redirects.resolve(url);
+		if (url == null) // redirected in a loop, or too many times
+			return;
+		if (budget != null && !budget.withinDepth(depth))
+			return;
+		if (!seenURLs.add(url)) // without lock
+			return;
+		if (budget != null && !budget.admit(url))
+			return;
+		if (journal != null)
+			journal.seen(url, depth);
+		if (crawlProxyHost == null) // start resolving its host before it is fetched
+			Xurl.dns.prefetchHostOf(url);
+		if (trackDepth)
+			depths.put(url, depth);
+		scheduler.accept(url, depth);
+	}
+
+	// Push the initial url into the frontier, or the frontier of the crawl checkpointed when resuming
+	static void start(String requestedURL) {
+		if (journal != null) {
+			try {
+				if (journal.open(resume, new CrawlJournal.Replay() {
+					@Override
+					public void fetched(String url) {
+						seenURLs.add(url);
+						if (budget != null) // charged as when first seen
+							budget.admit(url);
+					}
+
+					@Override
+					public void pending(String url, int depth) {
+						discover(url, depth);
+					}
+				}))
+					return;
+			} catch (IOException e) {
+				System.err.println(e);
+				System.exit(-1);
 			}
-		};
+		}
+		discover(requestedURL, 0);
+	}
 
+	// Add an URL to a frontier, by its depth when the frontier is ordered
+	static void enqueue(URLQueue queue, String url, int depth) {
+		if (queue instanceof PriorityURLQueue)
+			((PriorityURLQueue) queue).offer(url, depth);
+		else
+			queue.enqueue(url);
+	}
+
+	// Query an URL, trying again when it fails: an interrupted download is resumed where it stopped
+	static void fetch(String url, String proxyHost, int proxyPort) {
+		if (trackDepth) { // the links found are one level deeper
+			Integer depth = depths.remove(url);
+			pageDepth.set(depth != null ? depth : 0);
+		}
+		if (fetchWithRetries(url, proxyHost, proxyPort) && journal != null)
+			journal.done(url); // not to be fetched again on resume
+	}
+
+	// Query an URL up to MAX_ATTEMPTS times, false when interrupted before it is done
+	private static boolean fetchWithRetries(String url, String proxyHost, int proxyPort) {
+		long delay = RETRY_DELAY;
+		for (int attempt = 1;; attempt++) {
+			FetchResult result;
+			try {
+				result = Xurl.fetch(url, null, proxyHost, proxyPort);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e);
+				return true;
+			}
+			if (!result.retriable) // retrieved, or not worth another attempt, e.g. a slow server
+				return true;
+			if (attempt == MAX_ATTEMPTS) {
+				System.err.println("giving up " + url);
+				return true;
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			delay *= 2;
+		}
+	}
+
+	public static void doIterative(String requestedURL, String proxyHost, int proxyPort) {
+		final URLQueue queue = newQueue(new ListQueue());
+		final FingerprintSet seen = newSeenSet();
+
+		crawl(seen, proxyHost, (url, depth) -> enqueue(queue, url, depth));
 		// to start, we push the initial url into the queue
-		URLprocessing.handler.takeUrl(requestedURL);
+		start(requestedURL);
 		while (!queue.isEmpty()) {
 			String url = queue.dequeue();
-			Xurl.query(url, proxyHost, proxyPort); // or equivalent yours
+			Wget.fetch(url, proxyHost, proxyPort); // or equivalent yours
 		}
+		closeQueue(queue);
+		System.out.println(seen);
 	}
 
 	public static void doMultiThreaded(String requestedURL, String proxyHost, int proxyPort) {
-		final URLQueue queue = new SynchronizedListQueue();
-		final HashSet<String> seen = new HashSet<String>();
-
-		URLprocessing.handler = new URLprocessing.URLhandler() {
-			// this method is called for each matched url
-			public synchronized void takeUrl(String url) {
-				if (!seen.contains(url)) {
-					seen.add(url);
-					queue.enqueue(url);
-				}
-			}
-		};
+		final URLQueue queue = newQueue(new SynchronizedListQueue());
+		final FingerprintSet seen = newSeenSet();
+		final CrawlTracker tracker = new CrawlTracker(queue);
 
-		int activeThreadsBase = Thread.activeCount(); // Save the original value of numbers of threads
+		crawl(seen, proxyHost, (url, depth) -> {
+			enqueue(queue, url, depth);
+			tracker.enqueued(); // wakes the dispatching thread
+		});
 		// to start, we push the initial url into the queue
-		URLprocessing.handler.takeUrl(requestedURL);
-		while (!queue.isEmpty() || Thread.activeCount() > activeThreadsBase) {
-			if (!queue.isEmpty()) {
-				String url = queue.dequeue();
-				Runnable runner = new Blade(url, proxyHost, proxyPort);
-				Thread t = new Thread(runner);
-				t.start();
-			} else { // If the queue is empty, wait: maybe another thread is going to fill it!
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
+		start(requestedURL);
+		// woken as soon as an URL is enqueued, done when the queue is empty and no thread is running
+		while (tracker.awaitWork()) {
+			String url = queue.dequeue();
+			tracker.dispatched(); // counted before it runs
+			Runnable runner = new Blade(url, proxyHost, proxyPort, tracker);
+			Thread t = new Thread(runner);
+			t.start();
 		}
+		closeQueue(queue);
+		System.out.println(seen);
 	}
 
 	public static void doThreadedPool(String requestedURL, String proxyHost, int proxyPort) {
 		/* We thought about this exercise with my fellow Flavien SOLT*/
 
-		final URLQueue queue = new BlockingListQueue();
-		final HashSet<String> seen = new HashSet<String>();
-		ExecutorService exec = Executors.newFixedThreadPool(16);
-		AtomicInteger activeThreads = new AtomicInteger(0); // Used to implement manually the number of active threads
-
-		URLprocessing.handler = new URLprocessing.URLhandler() {
-			// this method is called for each matched url
-			public synchronized void takeUrl(String url) {
-				if (!seen.contains(url)) {
-					seen.add(url);
-					queue.enqueue(url);
-				}
-			}
-		};
+		// one queue per host, giving only the URLs which may be fetched now
+		final HostFrontier queue = new HostFrontier(maxPerHost, hostDelay);
+		final FingerprintSet seen = newSeenSet();
+		final CrawlTracker tracker = new CrawlTracker(queue);
+		final int threads = 16;
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		// an URL is only taken for an idle thread, the executor never queueing any: its host delay
+		// runs from when it is fetched
+		final Semaphore idle = new Semaphore(threads);
 
+		crawl(seen, proxyHost, (url, depth) -> {
+			queue.enqueue(url);
+			tracker.enqueued(); // wakes the dispatching thread
+		});
 		// to start, we push the initial url into the queue
-		URLprocessing.handler.takeUrl(requestedURL);
-		while (!queue.isEmpty() || activeThreads.get() > 0) {
-			if (!queue.isEmpty()) {
-				System.out.println(activeThreads.get());
+		start(requestedURL);
+		// woken as soon as an URL is enqueued, done when the queue is empty and no task is in flight
+		try {
+			while (tracker.awaitWork()) {
+				idle.acquire();
+				// only this thread removes URLs, hence it waits for the next host ready, not forever
+				final String url = queue.dequeue();
+				tracker.dispatched(); // counted before it runs
 				Runnable blade = new Runnable() {
-                    @Override
-                    public void run() {
-                    	activeThreads.getAndIncrement(); // Update the number of active threads (++)
-                    	String url = queue.dequeue();
-                    	if (url.isEmpty()) return;
-                        Xurl.query(url, proxyHost, proxyPort);
-                        activeThreads.getAndDecrement(); // Idem (--)
-                    }
-                };
+					@Override
+					public void run() {
+						try {
+							Wget.fetch(url, proxyHost, proxyPort);
+						} finally {
+							queue.done(url); // room for another URL of its host
+							idle.release();
+							tracker.finished(); // after the URLs found are enqueued
+						}
+					}
+				};
 				exec.execute(blade);
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-			} else { // If the queue is empty, wait: maybe another thread is going to fill it!
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
 			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		exec.shutdown();
+		System.out.println(queue);
+		System.out.println(seen);
+	}
+
+	// One virtual thread per task when the runtime has them (Java 21), found by reflection so that
+	// this compiles on older ones, which fall back to a fixed pool of platform threads, the fetches
+	// in flight being capped to its size
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			maxInFlight = Math.min(maxInFlight, MAX_PLATFORM_THREADS);
+			System.err.println("no virtual threads in Java " + Runtime.version().feature()
+					+ ", using " + maxInFlight + " platform threads");
+			return Executors.newFixedThreadPool(maxInFlight);
+		}
+	}
+
+	public static void doVirtualThreads(String requestedURL, String proxyHost, int proxyPort) {
+		// the per-host cap is kept by the frontier, the global one by a semaphore
+		final HostFrontier queue = new HostFrontier(maxPerHost, hostDelay);
+		final FingerprintSet seen = newSeenSet();
+		final CrawlTracker tracker = new CrawlTracker(queue);
+		ExecutorService exec = newVirtualThreadExecutor(); // before maxInFlight is read
+		final Semaphore slots = new Semaphore(maxInFlight);
+
+		crawl(seen, proxyHost, (url, depth) -> {
+			queue.enqueue(url);
+			tracker.enqueued(); // wakes the dispatching thread
+		});
+		// to start, we push the initial url into the queue
+		start(requestedURL);
+		try {
+			while (tracker.awaitWork()) {
+				slots.acquire(); // before taking a slot of its host
+				final String url = queue.dequeue();
+				tracker.dispatched(); // counted before it runs
+				exec.execute(() -> {
+					try {
+						Wget.fetch(url, proxyHost, proxyPort);
+					} finally {
+						queue.done(url);
+						slots.release();
+						tracker.finished(); // after the URLs found are enqueued
+					}
+				});
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
-        exec.shutdownNow();
+		exec.shutdown();
+		System.out.println(queue);
+		System.out.println(seen);
+	}
+
+	public static void doWorkStealing(String requestedURL, String proxyHost, int proxyPort) {
+		final FingerprintSet seen = newSeenSet();
+		// a deque per worker, its own tasks taken in order (async mode), the others' stolen
+		final ForkJoinPool workers = new ForkJoinPool(16, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+
+		crawl(seen, proxyHost, (url, depth) -> {
+			ForkJoinTask<?> task = ForkJoinTask.adapt(() -> Wget.fetch(url, proxyHost, proxyPort));
+			if (ForkJoinTask.getPool() == workers)
+				task.fork(); // onto the deque of the worker which found it, without any shared queue
+			else
+				workers.execute(task);
+		});
+		// to start, we push the initial url, then wait for the workers to run out of tasks to do or steal
+		start(requestedURL);
+		while (!workers.awaitQuiescence(1, TimeUnit.DAYS))
+			;
+		workers.shutdown();
+		System.out.println("steals: " + workers.getStealCount());
+		System.out.println(seen);
+	}
+
+	// Submit an URL to the asynchronous fetcher, submitting it again after a delay when it fails
+	static void submit(AsyncFetcher fetcher, String url, int attempt) {
+		CompletableFuture<FetchResult> fetch = attempt == 1 ? fetcher.fetch(url)
+				: fetcher.fetchAfter(url, RETRY_DELAY << (attempt - 2)); // doubled after each failure
+		fetch.thenAccept(result -> {
+			if (result.retriable && attempt < MAX_ATTEMPTS) {
+				submit(fetcher, url, attempt + 1); // an interrupted download is resumed
+				return;
+			}
+			if (result.retriable)
+				System.err.println("giving up " + url);
+			if (journal != null)
+				journal.done(url); // not to be fetched again on resume
+		});
+	}
+
+	public static void doAsynchronous(String requestedURL, String proxyHost, int proxyPort) {
+		final FingerprintSet seen = newSeenSet();
+		ExecutorService exec = Executors.newCachedThreadPool();
+		final AsyncFetcher fetcher = new AsyncFetcher(exec, AsyncFetcher.DEFAULT_MAX_IN_FLIGHT, proxyHost, proxyPort);
+
+		crawl(seen, proxyHost, (url, depth) -> submit(fetcher, url, 1));
+		// to start, we push the initial url, then wait for the fetches to stop spawning new ones
+		start(requestedURL);
+		try {
+			fetcher.awaitIdle();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		exec.shutdown();
+		System.out.println(fetcher);
+		System.out.println(seen);
+	}
+
+	public static void doNonBlocking(String requestedURL, String proxyHost, int proxyPort) {
+		final FingerprintSet seen = newSeenSet();
+		final NioFetcher fetcher;
+		try {
+			fetcher = new NioFetcher(proxyHost, proxyPort, NioFetcher.DEFAULT_MAX_IN_FLIGHT);
+		} catch (IOException e) {
+			System.err.println(e);
+			return;
+		}
+
+		crawl(seen, proxyHost, (url, depth) -> fetcher.submit(url));
+		// to start, we push the initial url, then wait for the fetches to stop spawning new ones
+		start(requestedURL);
+		fetcher.start();
+		try {
+			fetcher.awaitIdle();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		fetcher.close();
+		System.out.println(fetcher);
+		System.out.println(seen);
 	}
 
 	public static void main(String[] args) {
-		if (args.length < 1) {
-			System.err.println("Usage: java Wget url [proxyHost proxyPort]");
+		String mode = "pool";
+		int readTimeout = FetchLimits.DEFAULT_READ_TIMEOUT;
+		long deadline = FetchLimits.DEFAULT_DEADLINE;
+		long minThroughput = FetchLimits.DEFAULT_MIN_THROUGHPUT;
+		int first = 0;
+		while (args.length > first && args[first].startsWith("--")) {
+			String option = args[first++];
+			if (option.startsWith("--mode=")) {
+				mode = option.substring("--mode=".length());
+			} else if (option.startsWith("--cache=")) {
+				try {
+					Xurl.cache = new HttpCache(Paths.get(option.substring("--cache=".length())),
+							HttpCache.DEFAULT_MAX_SIZE);
+				} catch (IOException e) {
+					System.err.println(e);
+					System.exit(-1);
+				}
+			} else if (option.startsWith("--queue-dir=")) {
+				queueDirectory = Paths.get(option.substring("--queue-dir=".length()));
+			} else if (option.startsWith("--expected-urls=")) {
+				expectedURLs = Integer.parseInt(option.substring("--expected-urls=".length()));
+			} else if (option.equals("--offheap")) {
+				offHeap = true;
+			} else if (option.equals("--bloom")) {
+				bloom = true;
+			} else if (option.startsWith("--per-host=")) {
+				maxPerHost = Integer.parseInt(option.substring("--per-host=".length()));
+			} else if (option.startsWith("--host-delay=")) {
+				hostDelay = Long.parseLong(option.substring("--host-delay=".length()));
+			} else if (option.startsWith("--max-in-flight=")) {
+				maxInFlight = Integer.parseInt(option.substring("--max-in-flight=".length()));
+			} else if (option.startsWith("--order=")) {
+				String by = option.substring("--order=".length());
+				if (by.equals("depth")) {
+					order = PriorityURLQueue.BY_DEPTH;
+				} else if (by.equals("hosts")) {
+					order = PriorityURLQueue.BY_HOST_DIVERSITY;
+				} else {
+					System.err.println("unknown order " + by);
+					System.exit(-1);
+				}
+			} else if (option.startsWith("--max-depth=")) {
+				maxDepth = Integer.parseInt(option.substring("--max-depth=".length()));
+			} else if (option.startsWith("--max-pages=")) {
+				maxPages = Long.parseLong(option.substring("--max-pages=".length()));
+			} else if (option.startsWith("--max-per-host=")) {
+				maxPagesPerHost = Integer.parseInt(option.substring("--max-per-host=".length()));
+			} else if (option.startsWith("--checkpoint=")) {
+				journal = new CrawlJournal(Paths.get(option.substring("--checkpoint=".length())));
+			} else if (option.equals("--resume")) {
+				resume = true;
+			} else if (option.startsWith("--read-timeout=")) {
+				readTimeout = Integer.parseInt(option.substring("--read-timeout=".length()));
+			} else if (option.startsWith("--deadline=")) {
+				deadline = Long.parseLong(option.substring("--deadline=".length()));
+			} else if (option.startsWith("--min-rate=")) {
+				minThroughput = Long.parseLong(option.substring("--min-rate=".length()));
+			} else {
+				System.err.println("unknown option " + option);
+				System.exit(-1);
+			}
+		}
+		if (args.length < first + 1) {
+			System.err.println("Usage: java Wget [--mode=iterative|threads|pool|virtual|forkjoin|nio|async] [--cache=dir]"
+					+ " [--queue-dir=dir] [--expected-urls=n] [--offheap] [--bloom] [--per-host=n] [--host-delay=ms]"
+					+ " [--max-in-flight=n] [--order=depth|hosts] [--max-depth=n] [--max-pages=n] [--max-per-host=n]"
+					+ " [--checkpoint=file [--resume]]"
+					+ " [--read-timeout=ms] [--deadline=ms] [--min-rate=bytes/s] url [proxyHost proxyPort]");
 			System.exit(-1);
 		}
+		if (resume && journal == null) {
+			System.err.println("--resume needs --checkpoint");
+			System.exit(-1);
+		}
+		// only the frontiers of the iterative and threads modes are ordered, and the depth of the
+		// pages is only known to the threads fetching them
+		if (order != null && !mode.equals("iterative") && !mode.equals("threads")) {
+			System.err.println("--order is only for the iterative and threads modes");
+			System.exit(-1);
+		}
+		if (maxDepth != CrawlBudget.UNBOUNDED && (mode.equals("nio") || mode.equals("async"))) {
+			System.err.println("no --max-depth in the nio and async modes");
+			System.exit(-1);
+		}
+		if (journal != null && mode.equals("nio")) {
+			System.err.println("no checkpoints in the nio mode");
+			System.exit(-1);
+		}
+		Xurl.limits = new FetchLimits(FetchLimits.DEFAULT_CONNECT_TIMEOUT, readTimeout, deadline, minThroughput);
+		String url = args[first];
 		String proxyHost = null;
-		if (args.length > 1)
-			proxyHost = args[1];
+		if (args.length > first + 1)
+			proxyHost = args[first + 1];
 		int proxyPort = -1;
-		if (args.length > 2)
-			proxyPort = Integer.parseInt(args[2]);
-		doThreadedPool(args[0], proxyHost, proxyPort);
+		if (args.length > first + 2)
+			proxyPort = Integer.parseInt(args[first + 2]);
+		switch (mode) {
+		case "iterative":
+			doIterative(url, proxyHost, proxyPort);
+			break;
+		case "threads":
+			doMultiThreaded(url, proxyHost, proxyPort);
+			break;
+		case "pool":
+			doThreadedPool(url, proxyHost, proxyPort);
+			break;
+		case "virtual":
+			doVirtualThreads(url, proxyHost, proxyPort);
+			break;
+		case "forkjoin":
+			doWorkStealing(url, proxyHost, proxyPort);
+			break;
+		case "nio":
+			doNonBlocking(url, proxyHost, proxyPort);
+			break;
+		case "async":
+			doAsynchronous(url, proxyHost, proxyPort);
+			break;
+		default:
+			System.err.println("unknown mode " + mode);
+			System.exit(-1);
+		}
+		if (budget != null)
+			System.out.println(budget);
+		System.out.println(Xurl.pool);
+		System.out.println(Xurl.dns);
+		System.out.println(Xurl.redirects);
+		System.out.println(Xurl.limits);
+		System.out.println(Xurl.buffers);
+		if (Xurl.encodedBytes.get() > 0)
+			System.out.println("compressed: received=" + Xurl.encodedBytes.get()
+					+ " decompressed=" + Xurl.decodedBytes.get());
+		if (Xurl.cache != null) {
+			System.out.println(Xurl.cache);
+			Xurl.cache.close();
+		}
+		if (journal != null) {
+			journal.close();
+			System.out.println(journal);
+		}
 	}
 
 }
@@ -1,12 +1,25 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.CharBuffer;
-import java.util.MissingResourceException;
+import java.io.PushbackInputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 public class Xurl {
 
@@ -14,113 +27,631 @@ public class Xurl {
   public static final boolean VERBOSE = false;
   public static final int CHUNKED = -1;
   public static final int UNSPECIFIED = -2;
+  // outcomes of a request
+  private static final int RETRY = 0; // reused connection found closed
+  private static final int DONE = 1;
+  private static final int FAILED = 2; // may be retried later
+  private static final int REDIRECTED = 3; // to result.url
+  /** maximum number of requests sent ahead of their answers when pipelining */
+  public static final int PIPELINE_DEPTH = 16;
+  public static final int BUFFER_SIZE = 8192;
+  /** size from which a document may be downloaded as parallel ranges */
+  public static final long SEGMENT_THRESHOLD = 1 << 20;
 
   /**
-   * Skip and parse remaining lines of the HTTP header until the terminating
-   * empty line. Return the data length when specified in this header.
+   * Buffers shared by all the downloads and connections, within a memory
+   * ceiling.
+   */
+  public static final BufferPool buffers = new BufferPool(BUFFER_SIZE,
+      BufferPool.DEFAULT_MAX_MEMORY);
+
+  /**
+   * Bytes received for compressed documents, and the same once decompressed.
+   */
+  public static final AtomicLong encodedBytes = new AtomicLong(0);
+  public static final AtomicLong decodedBytes = new AtomicLong(0);
+
+  /**
+   * Number of byte ranges fetched in parallel for a large document, when the
+   * server accepts ranges; 1 to always use a single stream.
+   */
+  public static int segments = 1;
+
+  /**
+   * Timeouts, deadline and minimum throughput of the queries.
+   */
+  public static FetchLimits limits = new FetchLimits();
+
+  // fetch the ranges of segmented downloads
+  private static final ExecutorService segmentWorkers = Executors
+      .newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Xurl segment");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  /**
+   * Name resolutions shared by all queries; may be replaced, e.g. by a cache
+   * in front of an in-memory table.
+   */
+  public static DnsCache dns = new DnsCache(HostResolver.SYSTEM);
+
+  /**
+   * Persistent connections shared by all queries.
+   */
+  public static final ConnectionPool pool = new ConnectionPool(
+      host -> dns.resolve(host), buffers);
+
+  /**
+   * Cache of the downloaded documents, none when null.
+   */
+  public static HttpCache cache = null;
+
+  /**
+   * Redirections answered so far, applied before querying.
+   */
+  public static final RedirectTable redirects = new RedirectTable();
+
+  /**
+   * Where the targets of redirections are handed instead of being queried at
+   * once when not null, e.g. to the frontier of a crawler.
+   */
+  public static URLprocessing.URLhandler redirectHandler = null;
+
+  /**
+   * Read the header of an answer: its status line, then its fields up to the
+   * terminating empty line. They are parsed in place in the input buffer.
    * 
-   * @param stream
-   *          the reader from which the HTTP stream is read
-   * @return the data length when specified by the Content-Length tag, or
-   *         CHUNKED (-1) if 'chunked' Transfer-Encoding is set, or UNSPECIFIED
-   *         (-2) when the server is expected to close the connection.
+   * @param connection
+   *          the connection to be read, marked as not reusable when the
+   *          server announces it will close it
+   * @return the header, with the data length when specified by the
+   *         Content-Length tag, or CHUNKED (-1) if 'chunked' Transfer-Encoding
+   *         is set, or UNSPECIFIED (-2) when the server is expected to close
+   *         the connection; null when the connection is closed before the
+   *         answer.
+   * @throws IOException
+   *           when the header can't be read entirely, or is malformed
    */
-  private static int parseHeader(BufferedReader stream) {
-    int length = UNSPECIFIED;
-    String line = null;
-    do {
-      try {
-        line = stream.readLine();
-      } catch (IOException e1) {
-        e1.printStackTrace();
-        System.exit(-9);
+  private static ResponseHeader parseHeader(
+      ConnectionPool.Connection connection) throws IOException {
+    ResponseHeader header = new ResponseHeader();
+    if (!connection.answerStream.readStatusLine(header))
+      return null;
+    connection.answerStream.readHeader(header);
+    if (header.close)
+      connection.keepAlive = false;
+    return header;
+  }
+
+  /**
+   * Wrap a body in a stream decompressing it as specified by its
+   * Content-Encoding.
+   * 
+   * @param body
+   *          the body as received
+   * @param encoding
+   *          the Content-Encoding, or null
+   * @return the decompressed stream, or the body itself when it is not
+   *         compressed (or in an unsupported way)
+   */
+  private static InputStream decoding(InputStream body, String encoding)
+      throws IOException {
+    if ("gzip".equals(encoding) || "x-gzip".equals(encoding))
+      return new GZIPInputStream(body, BUFFER_SIZE);
+    if (!"deflate".equals(encoding))
+      return body;
+    // 'deflate' should be zlib-wrapped, but some servers send raw data
+    PushbackInputStream in = new PushbackInputStream(body, 2);
+    int cmf = in.read();
+    int flg = in.read();
+    if (flg >= 0)
+      in.unread(flg);
+    if (cmf >= 0)
+      in.unread(cmf);
+    boolean zlib = (cmf & 0x0f) == 8 && flg >= 0 && (cmf * 256 + flg) % 31 == 0;
+    return new InflaterInputStream(in, new Inflater(!zlib), BUFFER_SIZE);
+  }
+
+  /**
+   * Download the document part through an already open TCP connection, once
+   * its header has been parsed. The body is
+   * entirely consumed, so that the connection may carry another request.
+   * Bytes are streamed to the file through a fixed-size buffer, and only text
+   * documents are scanned for links, while they are received. Compressed
+   * bodies are decompressed on the fly, after the chunks are reassembled.
+   * Large binary documents are downloaded in segments when enabled.
+   * 
+   * @param connection
+   *          the current TCP connection
+   * @param header
+   *          the header of the answer
+   * @param requestedURL
+   *          the requested URL in raw form, as expected by the connection
+   *          target, used to ask for ranges
+   * @param requestedHost
+   *          as given by the requested URL
+   * @param fileName
+   *          the name of a local file where the result will be stored, or null
+   *          when the document is to be skipped
+   * @param cacheURL
+   *          the (absolute) URL under which the document is to be cached, or
+   *          null
+   * @param partial
+   *          the journal of the download being resumed by this answer, or null
+   * @param result
+   *          where to record the header, the file and the errors
+   * @return <code>true</code> when the whole document has been received
+   */
+  private static boolean download(ConnectionPool.Connection connection,
+      ResponseHeader header, String requestedURL, String requestedHost,
+      String fileName, String cacheURL, ResumeJournal partial,
+      FetchResult result) {
+    if (header.length == UNSPECIFIED) // the body ends with the connection
+      connection.keepAlive = false;
+    HttpInput.Body body = connection.answerStream.body(header.length);
+    long offset = 0;
+    if (partial != null) {
+      if (header.rangeFirst != partial.received
+          || header.contentEncoding != null) {
+        partial.delete(); // not the expected part, start over
+        report(result, "unexpected range for " + requestedURL);
+        connection.keepAlive = false;
+        return false;
       }
-      if (SHOW_HEADER)
-        System.out.println(line);
-      if (line == null) {
-        System.err.println("can't get header");
-        System.exit(-10);
-      } else if (line.startsWith("Content-Length:")) {
-        String[] words = line.split(" ");
-        length = Integer.parseInt(words[1]);
-      } else if (line.startsWith("Transfer-Encoding: chunked")) {
-        length = CHUNKED;
+      offset = partial.received;
+    }
+    HttpCache.Writer stored = null;
+    LinkExtractor extractor = null;
+    ResumeJournal journal = partial;
+    if (fileName != null) {
+      if (cache != null && cacheURL != null && partial == null)
+        stored = cache.store(cacheURL, header);
+      if (header.isText())
+        extractor = new LinkExtractor(header.charset());
+      else if (segments > 1 && partial == null && header.acceptRanges
+          && header.length >= SEGMENT_THRESHOLD
+          && header.contentEncoding == null)
+        return downloadSegmented(connection, header, body, requestedURL,
+            requestedHost, fileName, stored, result);
+      // only the bytes as sent can be asked for again
+      if (journal == null && cacheURL != null
+          && header.contentEncoding == null && header.rangeValidator() != null)
+        journal = ResumeJournal.start(fileName, cacheURL,
+            header.rangeValidator());
+    }
+    byte[] buffer = buffers.acquire();
+    boolean decoded = true;
+    boolean failed = false;
+    long size = offset;
+    try (FileChannel file = fileName == null ? null
+        : FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      if (file != null) {
+        file.truncate(offset);
+        // the links of the part received before
+        for (long at = 0; extractor != null && at < offset;) {
+          int n = file.read(ByteBuffer.wrap(buffer), at);
+          if (n < 0)
+            break;
+          extractor.push(buffer, 0, n);
+          at += n;
+        }
+      }
+      InputStream content = fileName == null ? body
+          : decoding(body, header.contentEncoding);
+      int n;
+      while ((n = content.read(buffer, 0, buffer.length)) >= 0) {
+        if (file == null)
+          continue;
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+        while (data.hasRemaining())
+          size += file.write(data, size);
+        if (stored != null)
+          stored.write(ByteBuffer.wrap(buffer, 0, n));
+        if (extractor != null)
+          extractor.push(buffer, 0, n);
+        if (journal != null && journal.isDue(size)) {
+          file.force(false);
+          journal.save(size);
+        }
+      }
+      if (extractor != null)
+        extractor.finish();
+      if (content != body) {
+        while (body.read(buffer, 0, buffer.length) >= 0)
+          ; // whatever follows the compressed data
+        encodedBytes.addAndGet(body.received());
+        decodedBytes.addAndGet(size);
       }
-    } while (!"".equals(line)); // empty line at the end of header
-    if (length == UNSPECIFIED)
-      throw new MissingResourceException(
-          "no content length policy specified in header", "Content", "Length");
-    return length;
+    } catch (ZipException e) {
+      report(result, e + " for " + fileName);
+      decoded = false;
+    } catch (IOException e1) {
+      report(result, e1 + " for " + requestedURL);
+      failed = true;
+    } finally {
+      buffers.release(buffer);
+    }
+    boolean complete = decoded && !failed && body.isComplete();
+    if (decoded && !failed && !complete)
+      report(result, "incomplete body for " + requestedURL);
+    if (stored != null) {
+      try {
+        if (complete)
+          stored.commit();
+        else
+          stored.abort();
+      } catch (IOException e) {
+        System.err.println(e);
+      }
+    }
+    if (journal != null) {
+      if (complete)
+        journal.delete();
+      else if (size > journal.received)
+        journal.save(size); // to be resumed from there
+    }
+    if (!complete)
+      connection.keepAlive = false;
+    else if (fileName != null)
+      result.file = Paths.get(fileName);
+    result.size = size;
+    if (VERBOSE)
+      System.out.println("END OF STREAM");
+    return complete;
   }
 
   /**
-   * Download the document part through an already open TCP connection. Header
-   * is supposed partially parsed, but not length specification.
+   * Download a large document as byte ranges fetched in parallel over other
+   * connections, each written in place into the preallocated file. The answer
+   * already being received carries the first range. It goes on with the
+   * following ones only when a range can't be fetched, e.g. when the server
+   * ignores Range requests: then the document is downloaded as a single
+   * stream.
    * 
-   * @param answerStream
-   *          the input stream for the current TCP connection
+   * @param connection
+   *          the connection of the answer
+   * @param header
+   *          the header of the answer
+   * @param body
+   *          the body of the answer
+   * @param requestedURL
+   *          the requested URL in raw form, as expected by the connection
+   *          target
+   * @param requestedHost
+   *          as given by the requested URL
    * @param fileName
    *          the name of a local file where the result will be stored
+   * @param stored
+   *          where to cache the document, or null
+   * @param result
+   *          where to record the file and the errors
+   * @return <code>true</code> when the whole document has been written
    */
-  private static void download(BufferedReader answerStream, String fileName) {
-    int length = parseHeader(answerStream);
-    char[] buffer = new char[length > 0 ? length : 0]; // initial allocation
-    // System.out.println("filename : \"" + fileName + "\"");
-    //
-    // readLine returns null when the end of the input stream has been reached,
-    // this means that the server has shutdown the stream,
-    // but it is not always the case ... or not always immediately ...
-    // we should also consider the "Content-Length" information from the header
-    // and also handle the case of chunked data
-    // used when the server doesn't know the length at start, or
-    // to accomodate with smaller buffer size.
-    String line = "";
-    int count = 0;
-    boolean chunked = length == CHUNKED;
-    // __Test__.assertFalse("chunked encoding not supported", chunked);
-    try {
-      PrintWriter file = new PrintWriter(fileName);
-      while (line != null) {
-        if (chunked) {
-          line = answerStream.readLine();
-          if (line.length() == 0)
-            line = answerStream.readLine();
-          length = Integer.parseInt(line, 16);
-          if (VERBOSE)
-            System.out.println("CHUNK LENGTH = " + length);
-          count = 0;
-          if (length == 0)
-            break;
+  private static boolean downloadSegmented(ConnectionPool.Connection connection,
+      ResponseHeader header, HttpInput.Body body, String requestedURL,
+      String requestedHost, String fileName, HttpCache.Writer stored,
+      FetchResult result) {
+    long length = header.length;
+    long segmentSize = (length + segments - 1) / segments;
+    byte[] buffer = buffers.acquire();
+    boolean complete = false;
+    try (FileChannel file = FileChannel.open(Paths.get(fileName),
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      file.write(ByteBuffer.wrap(new byte[1]), length - 1); // preallocate
+      String validator = header.rangeValidator();
+      long deadline = limits.deadlineOf(result.started);
+      List<Future<Boolean>> ranges = new ArrayList<Future<Boolean>>();
+      for (long first = segmentSize; first < length; first += segmentSize) {
+        long start = first;
+        long last = Math.min(first + segmentSize, length) - 1;
+        ranges.add(segmentWorkers.submit(() -> fetchRange(connection.host,
+            connection.port, requestedURL, requestedHost, validator, file,
+            start, last, deadline)));
+      }
+      long position = 0;
+      while (position < length) {
+        if (position % segmentSize == 0 && position > 0
+            && fetched(ranges, (int) (position / segmentSize) - 1)) {
+          complete = true; // all the following ranges are there
+          break;
         }
-        if (buffer.length < length)
-          buffer = new char[length]; // size extended as needed
-        while (count < length) {
-          int n = answerStream.read(buffer, count, length - count);
-          if (n < 0) { // reached EOF
-            length = count;
+        long boundary = Math.min(position + segmentSize
+            - position % segmentSize, length);
+        int n = body.read(buffer, 0,
+            (int) Math.min(buffer.length, boundary - position));
+        if (n < 0)
+          break;
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+        while (data.hasRemaining())
+          position += file.write(data, position);
+      }
+      if (position == length)
+        complete = body.isComplete();
+      if (complete && stored != null) {
+        ByteBuffer data = ByteBuffer.wrap(buffer);
+        for (long at = 0; at < length; data.clear()) {
+          int n = file.read(data, at);
+          if (n < 0)
             break;
-          }
-          count += n;
-          // System.out.println(n + " " + count);
+          at += n;
+          data.flip();
+          stored.write(data);
         }
-        file.write(buffer, 0, length);
-        // uncomment the next line for exercise 3
-        URLprocessing.parseDocument(CharBuffer.wrap(buffer, 0, length));
-        if (!chunked && count >= length)
-          break;
       }
-      file.flush();
-      file.close();
     } catch (IOException e1) {
-      e1.printStackTrace();
-      System.exit(-11);
+      report(result, e1 + " for " + requestedURL);
+    } finally {
+      buffers.release(buffer);
     }
-    if (VERBOSE)
-      System.out.println("END OF STREAM");
+    if (complete) {
+      result.file = Paths.get(fileName);
+      result.size = length;
+    } else if (result.error == null) {
+      report(result, "incomplete body for " + requestedURL);
+    }
+    if (stored != null) {
+      try {
+        if (complete)
+          stored.commit();
+        else
+          stored.abort();
+      } catch (IOException e) {
+        System.err.println(e);
+      }
+    }
+    if (!body.isComplete())
+      connection.keepAlive = false; // the rest of the body is not read
+    return complete;
+  }
+
+  /**
+   * Wait for the ranges fetched in parallel from a given one.
+   * 
+   * @return <code>true</code> when all of them have been fetched
+   */
+  private static boolean fetched(List<Future<Boolean>> ranges, int from) {
+    boolean all = true;
+    for (int i = from; i < ranges.size(); i++) {
+      try {
+        all &= ranges.get(i).get();
+      } catch (InterruptedException | ExecutionException e) {
+        all = false;
+      }
+    }
+    return all;
   }
 
   /**
-   * Query and download an URL through an already open TCP connection.
+   * Fetch a byte range of a document through a connection of the pool, and
+   * write it in place.
+   * 
+   * @param validator
+   *          sent in If-Range, so that a document changed meanwhile is not
+   *          mixed with its former version
+   * @param file
+   *          where the document is written
+   * @param first
+   *          the position of the first byte of the range
+   * @param last
+   *          the position of the last byte of the range
+   * @param deadline
+   *          the deadline of the whole download
+   * @return <code>true</code> when the whole range has been written
+   */
+  private static boolean fetchRange(String connectionHost, int connectionPort,
+      String requestedURL, String requestedHost, String validator,
+      FileChannel file, long first, long last, long deadline) {
+    for (int attempt = 0; attempt < 2; attempt++) {
+      int timeout = limits.connectTimeout(deadline);
+      if (timeout < 0)
+        return false;
+      ConnectionPool.Connection connection;
+      try {
+        connection = pool.acquire(connectionHost, connectionPort, timeout);
+      } catch (IOException e) {
+        return false;
+      }
+      connection.watchdog.arm(limits, deadline);
+      boolean done = false;
+      try {
+        PrintStream queryStream = connection.queryStream;
+        queryStream.print("GET " + requestedURL + " HTTP/1.1\r\n");
+        queryStream.print("Host: " + requestedHost + "\r\n");
+        queryStream.print("Range: bytes=" + first + "-" + last + "\r\n");
+        if (validator != null)
+          queryStream.print("If-Range: " + validator + "\r\n");
+        queryStream.print("\r\n");
+        queryStream.flush();
+        ResponseHeader header = parseHeader(connection);
+        if (header == null && connection.reused)
+          continue; // closed by the server while idle, try again
+        if (header == null || header.status != 206)
+          return false; // the server ignores ranges, or the document changed
+        if (header.rangeFirst != first || header.rangeLast != last
+            || header.contentEncoding != null)
+          return false;
+        HttpInput.Body body = connection.answerStream.body(header.length);
+        long position = first;
+        byte[] buffer = buffers.acquire();
+        try {
+          int n;
+          while ((n = body.read(buffer, 0, buffer.length)) >= 0) {
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+            while (data.hasRemaining())
+              position += file.write(data, position);
+          }
+        } finally {
+          buffers.release(buffer);
+        }
+        done = body.isComplete() && position == last + 1;
+        return done;
+      } catch (IOException e) {
+        return false;
+      } finally {
+        if (!done)
+          connection.keepAlive = false;
+        pool.release(connection);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Copy a cached document to a local file, looking for links as if it had
+   * just been downloaded.
+   * 
+   * @param cached
+   *          the entry of the document
+   * @param revalidated
+   *          true when the document has just been confirmed by the server
+   * @param fileName
+   *          the name of a local file where the result will be stored
+   * @param result
+   *          where to record the file
+   * @return <code>false</code> when the cached document can't be read, it is
+   *         then dropped from the cache
+   */
+  private static boolean serveFromCache(HttpCache.Entry cached,
+      boolean revalidated, String fileName, FetchResult result) {
+    ResponseHeader header = new ResponseHeader();
+    header.contentType = cached.contentType;
+    LinkExtractor extractor = header.isText()
+        ? new LinkExtractor(header.charset()) : null;
+    byte[] buffer = buffers.acquire();
+    try (InputStream in = Files.newInputStream(cache.serve(cached, revalidated));
+        FileChannel file = FileChannel.open(Paths.get(fileName),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      int n;
+      while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+        while (data.hasRemaining())
+          file.write(data);
+        if (extractor != null)
+          extractor.push(buffer, 0, n);
+      }
+      if (extractor != null)
+        extractor.finish();
+      result.fromCache = true;
+      if (result.header == null)
+        result.header = header;
+      result.file = Paths.get(fileName);
+      result.size = cached.size;
+      return true;
+    } catch (IOException e) {
+      if (VERBOSE)
+        System.err.println(e);
+      cache.remove(cached);
+      return false;
+    } finally {
+      buffers.release(buffer);
+    }
+  }
+
+  /**
+   * Skip the body of an answer which is not downloaded, so that the connection
+   * may carry another request. A 304 answer has no body.
+   */
+  private static void skipBody(ConnectionPool.Connection connection,
+      ResponseHeader header) throws IOException {
+    if (header.status == 304)
+      return;
+    if (header.length == UNSPECIFIED) { // up to the end of the connection
+      connection.keepAlive = false;
+      return;
+    }
+    HttpInput.Body body = connection.answerStream.body(header.length);
+    byte[] buffer = buffers.acquire();
+    try {
+      while (body.read(buffer, 0, buffer.length) >= 0)
+        ;
+    } finally {
+      buffers.release(buffer);
+    }
+    if (!body.isComplete())
+      connection.keepAlive = false;
+  }
+
+  /**
+   * Write a GET request, without flushing it.
+   * 
+   * @param queryStream
+   *          the output stream for the current TCP connection
+   * @param requestedURL
+   *          the requested URL in raw form, as expected by the connection
+   *          target
+   * @param requestedHost
+   *          as given by the requested URL
+   * @param cached
+   *          the cached document to be revalidated, or null
+   * @param partial
+   *          the journal of a download to be resumed, or null
+   */
+  private static void sendRequest(PrintStream queryStream, String requestedURL,
+      String requestedHost, HttpCache.Entry cached, ResumeJournal partial) {
+    queryStream.print("GET " + requestedURL + " HTTP/1.1\r\n");
+    queryStream.print("Host: " + requestedHost + "\r\n");
+    if (partial != null) { // the rest of the bytes as first sent
+      queryStream.print("Range: bytes=" + partial.received + "-\r\n");
+      queryStream.print("If-Range: " + partial.validator + "\r\n");
+    } else {
+      queryStream.print("Accept-Encoding: gzip, deflate\r\n");
+    }
+    if (cached != null && cached.etag != null)
+      queryStream.print("If-None-Match: " + cached.etag + "\r\n");
+    if (cached != null && cached.lastModified != null)
+      queryStream.print("If-Modified-Since: " + cached.lastModified + "\r\n");
+    queryStream.print("\r\n"); // an 'empty' line = "\r\n" only
+  }
+
+  /**
+   * Report why a document could not be retrieved.
+   */
+  private static void report(FetchResult result, String message) {
+    System.err.println(message);
+    result.error = message;
+  }
+
+  /**
+   * Record a redirection, and tell whether its target is to be queried now.
+   * 
+   * @param requestedURL
+   *          the requested (absolute) URL in raw form
+   * @param location
+   *          the target given by the server
+   * @param permanent
+   *          true for a 301 answer, false for a 302
+   * @param result
+   *          where to record a redirection handed over, or not followed
+   * @return the target to be queried, or null when it is handed to the
+   *         redirectHandler, or not to be followed
+   */
+  private static String redirect(String requestedURL, String location,
+      boolean permanent, FetchResult result) {
+    if (!location.startsWith("http://") || !MyURL.isValid(location)) {
+      report(result,
+          "unsupported redirection to " + location + " for " + requestedURL);
+      return null;
+    }
+    if (redirects.record(requestedURL, location,
+        permanent) > RedirectTable.MAX_HOPS) {
+      report(result, "too many redirections for " + requestedURL);
+      return null;
+    }
+    if (redirectHandler != null) {
+      result.location = location;
+      redirectHandler.takeUrl(location);
+      return null;
+    }
+    return location;
+  }
+
+  /**
+   * Query and download an URL through an already open TCP connection. A
+   * download interrupted before is resumed where it stopped.
    * 
    * @param requestedURL
    *          the requested (absolute) URL in raw form
@@ -130,68 +661,98 @@ public class Xurl {
    *          to be passed again when the query is redirected
    * @param proxyPort
    *          to be passed again when the query is redirected
-   * @param queryStream
-   *          the output stream for the current TCP connection
-   * @param answerStream
-   *          the input stream for the current TCP connection
+   * @param connection
+   *          the current TCP connection
    * @param fileName
    *          the name of a local file where the result will be stored
+   * @param cacheURL
+   *          the (absolute) URL under which the document is cached and its
+   *          download journaled, or null
+   * @param result
+   *          where to record the answer
+   * @return RETRY when a reused connection turned out to be closed by the
+   *         server before answering, FAILED when the document could not be
+   *         retrieved but may be later, and DONE otherwise
    */
-  private static void doRequest(String requestedURL, String requestedHost,
-      String proxyHost, int proxyPort, PrintStream queryStream,
-      BufferedReader answerStream, String fileName) {
+  private static int doRequest(String requestedURL, String requestedHost,
+      String proxyHost, int proxyPort, ConnectionPool.Connection connection,
+      String fileName, String cacheURL, FetchResult result) {
+    PrintStream queryStream = connection.queryStream;
+    HttpInput answerStream = connection.answerStream;
+    ResumeJournal partial = fileName != null && cacheURL != null
+        ? ResumeJournal.load(fileName, cacheURL) : null;
+    HttpCache.Entry cached = cache != null && cacheURL != null
+        && partial == null ? cache.lookup(cacheURL) : null;
     // now we are speaking HTTP
-    queryStream.print("GET " + requestedURL + " HTTP/1.1\r\n");
-    queryStream.print("Host: " + requestedHost + "\r\n");
-    queryStream.print("\r\n"); // an 'empty' line = "\r\n" only
+    sendRequest(queryStream, requestedURL, requestedHost, cached, partial);
     queryStream.flush();
     // now start receiving...
     if (SHOW_HEADER)
       System.out.println("====== HEADER ======");
-    String line = null;
-    // analyse first line of header
+    ResponseHeader header;
     try {
-      line = answerStream.readLine();
-      if (SHOW_HEADER)
-        System.out.println(line);
-      if (line == null) {
-        System.err.println("can't get header");
-        System.exit(-5);
-        return; // not reached !
-      }
-      String[] tokens = line.split(" ");
-      if (!tokens[0].startsWith("HTTP")) {
-        System.err.println("bad answered protocol");
-        System.exit(-6);
+      header = parseHeader(connection);
+      if (header == null) {
+        if (connection.reused)
+          return RETRY;
+        report(result, "can't get header for " + requestedURL);
+        connection.keepAlive = false;
+        return FAILED;
       }
-      if ("301".equals(tokens[1]) || "302".equals(tokens[1])) {
-        while (!line.startsWith("Location: ")) {
-          try {
-            line = answerStream.readLine();
-            if (SHOW_HEADER)
-              System.out.println(line);
-          } catch (IOException e1) {
-            e1.printStackTrace();
-            System.exit(-9);
-          }
+      result.answered = System.nanoTime();
+      result.status = header.status;
+      result.header = header;
+      if (header.status == 304 && cached != null) {
+        cache.revalidated(cached, header);
+        if (serveFromCache(cached, true, fileName, result))
+          return DONE;
+        // the cached copy is lost, ask again without condition
+        return doRequest(requestedURL, requestedHost, proxyHost, proxyPort,
+            connection, fileName, cacheURL, result);
+      } else if (header.status == 206 && partial != null) {
+        return download(connection, header, requestedURL, requestedHost,
+            fileName, cacheURL, partial, result) ? DONE : FAILED;
+      } else if (header.status == 301 || header.status == 302) {
+        skipBody(connection, header);
+        if (header.location == null) {
+          report(result, "no location for " + requestedURL);
+          return FAILED;
         }
-        String[] toks = line.split(" ");
-        query(toks[1], fileName, proxyHost, proxyPort);
-        return;
-      } else if (!"200".equals(tokens[1])) {
-        System.err
-            .println("wrong status " + tokens[1] + " for " + requestedURL);
-        return;
+        String location = redirect(cacheURL != null ? cacheURL
+            : requestedURL.startsWith("/") ? "http://" + requestedHost
+                + requestedURL : requestedURL,
+            header.location, header.status == 301, result);
+        if (location == null)
+          return DONE;
+        result.url = location;
+        return REDIRECTED;
+      } else if (header.status != 200) {
+        report(result,
+            "wrong status " + header.status + " for " + requestedURL);
+        skipBody(connection, header);
+        // server errors may be transient, the others won't change
+        return header.status >= 500 ? FAILED : DONE;
       }
+    } catch (ProtocolException e) {
+      report(result, e.getMessage() + " for " + requestedURL);
+      connection.keepAlive = false;
+      return FAILED;
     } catch (IOException e1) {
-      e1.printStackTrace();
-      System.exit(-8);
+      if (connection.reused)
+        return RETRY;
+      report(result, e1 + " for " + requestedURL);
+      connection.keepAlive = false;
+      return FAILED;
     }
-    download(answerStream, fileName);
+    if (partial != null)
+      partial.delete(); // sent in full, e.g. the document has changed
+    return download(connection, header, requestedURL, requestedHost, fileName,
+        cacheURL, null, result) ? DONE : FAILED;
   }
 
   /**
-   * Open a TCP connection and query the specified URL.
+   * Get a TCP connection, either from the pool or freshly opened, and query the
+   * specified URL.
    * 
    * @param connectionHost
    *          the target of the TCP connection
@@ -203,40 +764,95 @@ public class Xurl {
    *          as given by the requested URL
    * @param fileName
    *          the name of a local file where the result will be stored
+   * @return <code>false</code> when the document could not be retrieved, and
+   *         the query may be tried again
    */
-  public static void connectAndQuery(String connectionHost, int connectionPort,
-      String requestedURL, String requestedHost, String fileName) {
-    // we create an unconnected socket
-    // no explicit binding, so the local address (local port number) is picked
-    // by system
-    Socket socket = new Socket();
-    PrintStream queryStream = null;
-    BufferedReader answerStream = null;
-    // open the connection
-    int timeout = 2000; // timeout on connection establishing
-    try {
-      // try connecting to the proxy (or server itself)
-      // a finite timeout is specified
-      socket.connect(new InetSocketAddress(connectionHost, connectionPort),
-          timeout);
-      // if we are here, then we are connected
-      // we build useful streams to talk through the socket
-      queryStream = new PrintStream(socket.getOutputStream());
-      answerStream = new BufferedReader(
-          new InputStreamReader(socket.getInputStream()));
-    } catch (IOException e) {
-      System.err.println(e);
-      System.exit(-4);
-    }
-    doRequest(requestedURL, requestedHost, connectionHost, connectionPort,
-        queryStream, answerStream, fileName);
-    try {
-      socket.shutdownOutput(); // close the other direction
-      socket.close(); // close everything and release memory
-    } catch (IOException e) {
-      System.err.println(e);
-      return;
+  public static boolean connectAndQuery(String connectionHost,
+      int connectionPort, String requestedURL, String requestedHost,
+      String fileName) {
+    return connectAndQuery(connectionHost, connectionPort, requestedURL,
+        requestedHost, fileName, null, null, -1, new FetchResult(requestedURL));
+  }
+
+  private static boolean connectAndQuery(String connectionHost,
+      int connectionPort, String requestedURL, String requestedHost,
+      String fileName, String cacheURL, String proxyHost, int proxyPort,
+      FetchResult result) {
+    // the redirections of a query share its deadline
+    long deadline = limits.deadlineOf(result.started);
+    int outcome = RETRY;
+    while (outcome == RETRY) {
+      int timeout = limits.connectTimeout(deadline);
+      if (timeout < 0) {
+        report(result, "deadline exceeded for " + requestedURL);
+        abort(result, FetchLimits.Limit.DEADLINE);
+        return false;
+      }
+      ConnectionPool.Connection connection = null;
+      try {
+        connection = pool.acquire(connectionHost, connectionPort, timeout);
+      } catch (IOException e) {
+        report(result, e + " for " + requestedURL);
+        if (e instanceof SocketTimeoutException)
+          abort(result, FetchLimits.Limit.CONNECT);
+        else
+          result.retriable = true;
+        return false;
+      }
+      connection.watchdog.arm(limits, deadline);
+      try {
+        outcome = doRequest(requestedURL, requestedHost, proxyHost, proxyPort,
+            connection, fileName, cacheURL, result);
+      } catch (RuntimeException e) { // an answer not foreseen
+        report(result, e + " for " + requestedURL);
+        connection.keepAlive = false;
+        pool.release(connection);
+        return false;
+      }
+      FetchLimits.Limit tripped = connection.watchdog.tripped;
+      if (tripped != null) {
+        if (outcome == RETRY) // not closed while idle after all
+          report(result, "read timed out for " + requestedURL);
+        connection.keepAlive = false;
+        pool.release(connection);
+        abort(result, tripped);
+        return false;
+      }
+      if (outcome != RETRY)
+        pool.release(connection);
+      else // closed by the server while idle, try again
+        connection.close();
     }
+    if (outcome == REDIRECTED) // the connection may carry the new query
+      return query(result.url, new MyURL(result.url), fileName, proxyHost,
+          proxyPort, result);
+    result.retriable = outcome == FAILED;
+    return outcome == DONE;
+  }
+
+  /**
+   * Record a query aborted by a limit. Only the timeouts are worth retrying,
+   * a slow server being likely to stay slow.
+   */
+  private static void abort(FetchResult result, FetchLimits.Limit limit) {
+    limits.aborted(limit);
+    result.aborted = limit;
+    result.retriable = limit == FetchLimits.Limit.CONNECT
+        || limit == FetchLimits.Limit.READ;
+  }
+
+  /**
+   * Apply the automatic naming rules to pick a local file name for an URL.
+   * 
+   * @param url
+   *          the requested URL
+   * @return the last segment of the URL path, or "index" for a directory
+   */
+  static String fileNameOf(MyURL url) {
+    String[] names = url.getPath().split("/");
+    if (url.getPath().endsWith("/"))
+      return "index";
+    return names[names.length - 1];
   }
 
   /**
@@ -255,8 +871,11 @@ public class Xurl {
    *          specified, otherwise the connection target (host and port) is
    *          picked from the given UR; a negative port number specifies the
    *          default HTTP port
+   * @return <code>false</code> when the document could not be retrieved, and
+   *         the query may be tried again: an interrupted download is then
+   *         resumed
    */
-  public static void query(String requestedURL, String indicatedName,
+  public static boolean query(String requestedURL, String indicatedName,
       String proxyHost, int proxyPort) {
     // weird initialization to prevent a warning about potential null reference
     MyURL url = new MyURL("a://b/");
@@ -270,6 +889,57 @@ public class Xurl {
       System.err.println("unsupported protocol " + url.getProtocol());
       System.exit(-3);
     }
+    return query(requestedURL, url, indicatedName, proxyHost, proxyPort,
+        new FetchResult(requestedURL));
+  }
+
+  /**
+   * Query the specified URL, and tell what happened instead of exiting when
+   * the URL is not supported. The query runs in the calling thread.
+   * 
+   * @param requestedURL
+   *          the requested (absolute) URL in raw form
+   * @param indicatedName
+   *          the name of a local file where the result will be stored when not
+   *          null, otherwise automatic naming rules apply when null
+   * @param proxyHost
+   *          the target host for the TCP connection when not null
+   * @param proxyPort
+   *          the target port for the TCP connection when a proxyHost is
+   *          specified; a negative port number specifies the default HTTP port
+   * @return the outcome of the query
+   * @throws IllegalArgumentException
+   *           when the URL is not a valid http URL
+   */
+  public static FetchResult fetch(String requestedURL, String indicatedName,
+      String proxyHost, int proxyPort) {
+    MyURL url = new MyURL(requestedURL);
+    if (!"http".equals(url.getProtocol()))
+      throw new IllegalArgumentException(
+          "unsupported protocol " + url.getProtocol());
+    FetchResult result = new FetchResult(requestedURL);
+    query(requestedURL, url, indicatedName, proxyHost, proxyPort, result);
+    return result;
+  }
+
+  private static boolean query(String requestedURL, MyURL url,
+      String indicatedName, String proxyHost, int proxyPort,
+      FetchResult result) {
+    String fileName = indicatedName;
+    if (fileName == null)
+      fileName = fileNameOf(url);
+    // known redirections need no request, the file keeps its name
+    String target = redirects.resolve(requestedURL);
+    if (target == null) {
+      report(result, "too many redirections for " + requestedURL);
+      result.finished = System.nanoTime();
+      return true;
+    }
+    if (!target.equals(requestedURL)) {
+      requestedURL = target;
+      url = new MyURL(target);
+    }
+    result.url = requestedURL;
     if (VERBOSE)
       System.out.println("server name = " + url.getHost());
     int port = url.getPort();
@@ -279,23 +949,24 @@ public class Xurl {
       System.out.println("port = " + port);
       System.out.println("path = \"" + url.getPath() + '"');
     }
-    String fileName = indicatedName;
-    if (fileName == null) {
-      fileName = "index";
-      String[] names = url.getPath().split("/");
-      if (!url.getPath().endsWith("/"))
-        fileName = names[names.length - 1];
-    }
     if (VERBOSE)
       System.out.println("file name = " + fileName);
-    if (proxyHost == null) // case of a direct access
-      connectAndQuery(url.getHost(), port, url.getPath(), url.getHost(),
-          fileName);
+    boolean done;
+    HttpCache.Entry cached = cache == null ? null : cache.lookup(requestedURL);
+    if (cached != null && cached.isFresh()
+        && serveFromCache(cached, false, fileName, result))
+      done = true;
+    else if (proxyHost == null) // case of a direct access
+      done = connectAndQuery(url.getHost(), port, url.getPath(),
+          url.getHost(), fileName, requestedURL, proxyHost, proxyPort, result);
     else if (proxyPort < 0)
-      connectAndQuery(proxyHost, 80, requestedURL, url.getHost(), fileName);
+      done = connectAndQuery(proxyHost, 80, requestedURL, url.getHost(),
+          fileName, requestedURL, proxyHost, proxyPort, result);
     else
-      connectAndQuery(proxyHost, proxyPort, requestedURL, url.getHost(),
-          fileName);
+      done = connectAndQuery(proxyHost, proxyPort, requestedURL,
+          url.getHost(), fileName, requestedURL, proxyHost, proxyPort, result);
+    result.finished = System.nanoTime();
+    return done;
   }
 
   /**
@@ -311,24 +982,202 @@ public class Xurl {
    *          specified, otherwise the connection target (host and port) is
    *          picked from the given UR; a negative port number specifies the
    *          default HTTP port
+   * @return <code>false</code> when the document could not be retrieved, and
+   *         the query may be tried again
+   */
+  public static boolean query(String requestedURL, String proxyHost,
+      int proxyPort) {
+    return query(requestedURL, null, proxyHost, proxyPort);
+  }
+
+  /**
+   * Query a batch of URLs of the same server, pipelining the requests on a
+   * single connection: up to PIPELINE_DEPTH requests are sent ahead, then
+   * answers are read back in order. Redirections are followed once the batch
+   * is done, and the URLs left unanswered when the server closes the
+   * connection are queried one by one. Fresh cached documents are served
+   * without any request, and stale ones are revalidated.
+   * 
+   * @param requestedURLs
+   *          the requested (absolute) URLs in raw form, all with the same host
+   *          and port
+   * @param proxyHost
+   *          the target host for the TCP connection when not null, otherwise
+   *          the connection target (host and port) is picked from the given
+   *          URLs
+   * @param proxyPort
+   *          the target port for the TCP connection when a proxyHost is
+   *          specified; a negative port number specifies the default HTTP port
+   * @return <code>false</code> when some documents could not be retrieved
    */
-  public static void query(String requestedURL, String proxyHost,
+  public static boolean queryBatch(List<String> requestedURLs, String proxyHost,
       int proxyPort) {
-    query(requestedURL, null, proxyHost, proxyPort);
+    List<MyURL> urls = new ArrayList<MyURL>(requestedURLs.size());
+    for (String requestedURL : requestedURLs) {
+      MyURL url = new MyURL(requestedURL);
+      if (!"http".equals(url.getProtocol()))
+        throw new IllegalArgumentException(
+            "unsupported protocol " + url.getProtocol());
+      if (!urls.isEmpty() && (!url.getHost().equals(urls.get(0).getHost())
+          || url.getPort() != urls.get(0).getPort()))
+        throw new IllegalArgumentException(
+            "not the same server: " + requestedURL);
+      urls.add(url);
+    }
+    // fresh cached documents need no request
+    List<HttpCache.Entry> cachedEntries = new ArrayList<HttpCache.Entry>();
+    if (cache != null) {
+      List<String> remaining = new ArrayList<String>(requestedURLs.size());
+      List<MyURL> remainingURLs = new ArrayList<MyURL>(urls.size());
+      for (int i = 0; i < urls.size(); i++) {
+        HttpCache.Entry cached = cache.lookup(requestedURLs.get(i));
+        if (cached != null && cached.isFresh() && serveFromCache(cached, false,
+            fileNameOf(urls.get(i)), new FetchResult(requestedURLs.get(i))))
+          continue;
+        remaining.add(requestedURLs.get(i));
+        remainingURLs.add(urls.get(i));
+        cachedEntries.add(cached);
+      }
+      requestedURLs = remaining;
+      urls = remainingURLs;
+    }
+    if (urls.isEmpty())
+      return true;
+    String host = urls.get(0).getHost();
+    String connectionHost = host;
+    int connectionPort = urls.get(0).getPort();
+    if (proxyHost != null) {
+      connectionHost = proxyHost;
+      connectionPort = proxyPort;
+    }
+    if (connectionPort < 0)
+      connectionPort = 80;
+
+    ConnectionPool.Connection connection = null;
+    try {
+      connection = pool.acquire(connectionHost, connectionPort,
+          limits.connectTimeout);
+    } catch (IOException e) {
+      System.err.println(e);
+      if (e instanceof SocketTimeoutException)
+        limits.aborted(FetchLimits.Limit.CONNECT);
+      return false;
+    }
+    // redirections, and lost cached documents, are queried afterwards
+    List<String> requeried = new ArrayList<String>();
+    int sent = 0;
+    int answered = 0;
+    try {
+      while (answered < urls.size()) {
+        // keep the pipeline full
+        while (sent < urls.size() && sent - answered < PIPELINE_DEPTH) {
+          sendRequest(connection.queryStream,
+              proxyHost == null ? urls.get(sent).getPath()
+                  : requestedURLs.get(sent),
+              host, cache == null ? null : cachedEntries.get(sent), null);
+          sent++;
+        }
+        connection.queryStream.flush();
+        // each answer has its own deadline from when its turn comes
+        connection.watchdog.arm(limits, limits.deadlineOf(System.nanoTime()));
+        ResponseHeader header = parseHeader(connection);
+        if (header == null)
+          break; // closed by the server, the rest is queried one by one
+        String requestedURL = requestedURLs.get(answered);
+        HttpCache.Entry cached = cache == null ? null
+            : cachedEntries.get(answered);
+        if (header.status == 200) {
+          if (!download(connection, header,
+              proxyHost == null ? urls.get(answered).getPath() : requestedURL,
+              host, fileNameOf(urls.get(answered)), requestedURL, null,
+              new FetchResult(requestedURL)))
+            break; // to be queried again, resuming where it stopped
+        } else if (header.status == 304 && cached != null) {
+          cache.revalidated(cached, header);
+          if (!serveFromCache(cached, true, fileNameOf(urls.get(answered)),
+              new FetchResult(requestedURL)))
+            requeried.add(requestedURL); // lost, ask again without condition
+        } else {
+          if ((header.status == 301 || header.status == 302)
+              && header.location != null) {
+            String location = redirect(requestedURL, header.location,
+                header.status == 301, new FetchResult(requestedURL));
+            if (location != null)
+              requeried.add(location);
+          } else {
+            System.err.println(
+                "wrong status " + header.status + " for " + requestedURL);
+          }
+          skipBody(connection, header);
+        }
+        answered++;
+        if (!connection.keepAlive)
+          break;
+      }
+    } catch (IOException e) {
+      if (VERBOSE)
+        System.err.println(e);
+      connection.keepAlive = false;
+    } finally {
+      if (connection.watchdog.tripped != null)
+        limits.aborted(connection.watchdog.tripped);
+      if (answered < urls.size())
+        connection.keepAlive = false; // some requests are left unanswered
+      pool.release(connection);
+    }
+    boolean done = true;
+    for (int i = answered; i < urls.size(); i++)
+      done &= query(requestedURLs.get(i), proxyHost, proxyPort);
+    for (String location : requeried)
+      done &= query(location, proxyHost, proxyPort);
+    return done;
   }
 
   public static void main(String[] args) {
-    if (args.length < 1) {
-      System.err.println("Usage: java Xurl url [proxyHost proxyPort]");
+    int readTimeout = FetchLimits.DEFAULT_READ_TIMEOUT;
+    long deadline = FetchLimits.DEFAULT_DEADLINE;
+    long minThroughput = FetchLimits.DEFAULT_MIN_THROUGHPUT;
+    int first = 0;
+    for (; first < args.length && args[first].startsWith("--"); first++) {
+      if (args[first].startsWith("--cache=")) {
+        try {
+          cache = new HttpCache(Paths.get(args[first].substring(8)),
+              HttpCache.DEFAULT_MAX_SIZE);
+        } catch (IOException e) {
+          System.err.println(e);
+          System.exit(-1);
+        }
+      } else if (args[first].startsWith("--segments=")) {
+        segments = Integer.parseInt(args[first].substring(11));
+      } else if (args[first].startsWith("--read-timeout=")) {
+        readTimeout = Integer.parseInt(args[first].substring(15));
+      } else if (args[first].startsWith("--deadline=")) {
+        deadline = Long.parseLong(args[first].substring(11));
+      } else if (args[first].startsWith("--min-rate=")) {
+        minThroughput = Long.parseLong(args[first].substring(11));
+      } else {
+        break;
+      }
+    }
+    if (args.length < first + 1) {
+      System.err.println("Usage: java Xurl [--cache=dir] [--segments=n]"
+          + " [--read-timeout=ms] [--deadline=ms] [--min-rate=bytes/s]"
+          + " url [proxyHost proxyPort]");
       System.exit(-1);
     }
+    limits = new FetchLimits(FetchLimits.DEFAULT_CONNECT_TIMEOUT, readTimeout,
+        deadline, minThroughput);
     String proxyHost = null;
-    if (args.length > 1)
-      proxyHost = args[1];
+    if (args.length > first + 1)
+      proxyHost = args[first + 1];
     int proxyPort = -1;
-    if (args.length > 2)
-      proxyPort = Integer.parseInt(args[2]);
-    query(args[0], proxyHost, proxyPort);
+    if (args.length > first + 2)
+      proxyPort = Integer.parseInt(args[first + 2]);
+    boolean done = query(args[first], proxyHost, proxyPort);
+    if (cache != null)
+      cache.close();
+    if (!done)
+      System.exit(-11);
   }
 
 }